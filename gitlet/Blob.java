@@ -1,94 +1,431 @@
 package gitlet;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 import static gitlet.Utils.*;
 
 /** Represents a gitlet Blob object.
  *  A blob is a snapshot of a file's content at the moment of addition.
+ *  Blobs are content-addressed: the id depends only on the raw bytes of the file,
+ *  so identical content under different names (or commits) is stored once.
+ *  The name-to-content binding lives in the Commit's nameToBlob map.
  *
  *  @author flora
  */
 public class Blob implements Serializable {
+    /** Kept equal to the id of the old serialized format so that those blobs stay readable. */
+    private static final long serialVersionUID = -1563532010618811039L;
+
     /** The blob directory, a subdirectory of .gitlet. */
     public static final File BLOB_FOLDER = join(Repository.GITLET_DIR, "blobs");
 
+    /** Size of the buffers used when streaming content. */
+    private static final int BUFFER = 64 * 1024;
+
+    /** Leading bytes of a file produced by Utils.writeObject (Java serialization stream header). */
+    private static final byte[] SERIAL_MAGIC = {(byte) 0xAC, (byte) 0xED, 0x00, 0x05};
+    /** Number of ids kept by contentId. */
+    private static final int CONTENT_IDS_CAPACITY = 4096;
+    /** Content ids found by contentId, by blob id, least recently used first. */
+    private static final Map<String, String> CONTENT_IDS = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > CONTENT_IDS_CAPACITY;
+        }
+    };
+
 
     /* Instance variables */
 
-    /** Name of the Blob (SHA-1 hashed) */
+    /** Name of the Blob (SHA-1 hash of the raw content) */
     private final String id;
-    /** The plain String of the original file's content */
-    private final String plainContent;
-    private final String plainName;
-
-    /**
-     *  Constructor.
-     *  Given a filepath, reads in the File and converts it into a Blob.
-     *  Does NOT save it here.
+    /** The raw bytes of the original file's content, or null until a handle (see fromId) loads it.
+     *  Not serialized: a blob file holds exactly these bytes. */
+    private transient byte[] content;
+    /** Content and name of a blob in the old serialized format (id = sha1(name + content)).
+     *  Only set when such a blob is read back from disk. */
+    private String plainContent;
+    private String plainName;
+
+    /** Constructs a Blob from already-known id and raw content. */
+    private Blob(String id, byte[] content) {
+        this.id = id;
+        this.content = content;
+    }
+
+    /** Stores the content of the file at FILEPATH as a blob and returns a handle to it.
+     *  The file is streamed with a fixed-size buffer, so memory use does not depend on its size.
+     *  With core.compression 0 the file is hashed first and, if the blob is new,
+     *  copied as-is with FileChannel.transferTo; otherwise it is hashed and compressed in one pass.
      * @param filePath The absolute path of the file.
-     * @param plainName Plain name of the file (e.g. hello.txt)
      */
-    public Blob(File filePath, String plainName) {
+    public static Blob store(File filePath) {
         if (!BLOB_FOLDER.exists()) {
             BLOB_FOLDER.mkdir();
         }
-        this.plainContent = readContentsAsString(filePath);
-        this.plainName = plainName;
-        this.id = sha1(plainName + plainContent); // MUST: hash in its name
+        int level = Repository.compressionLevel();
+        try {
+            if (level == 0) {
+                Blob raw = storeRaw(filePath);
+                if (raw != null) {
+                    return raw;
+                }
+            }
+            return storeCompressed(filePath, level);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
     }
 
-    public void saveBlob() {
-        if (!BLOB_FOLDER.exists()) {
-            BLOB_FOLDER.mkdir();
+    /** Hashes FILEPATH and, unless the blob already exists, copies it into BLOB_FOLDER unchanged.
+     *  Returns null without storing anything if the content starts like another stored
+     *  format, since it must then be framed to read back unambiguously. */
+    private static Blob storeRaw(File filePath) throws IOException {
+        MessageDigest md = sha1Digest();
+        try (FileChannel in = FileChannel.open(filePath.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER);
+            boolean first = true;
+            while (in.read(buf) > 0) {
+                buf.flip();
+                if (first) {
+                    byte[] head = new byte[Math.min(SERIAL_MAGIC.length, buf.remaining())];
+                    buf.get(buf.position(), head);
+                    if (startsWith(head, COMPRESSED_MAGIC) || startsWith(head, SERIAL_MAGIC)) {
+                        return null;
+                    }
+                    first = false;
+                }
+                md.update(buf);
+                buf.clear();
+            }
+            String id = toHex(md.digest());
+            if (exists(id)) {
+                return fromId(id);
+            }
+            File tmp = tempFile();
+            try (FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.WRITE)) {
+                long size = in.size();
+                for (long pos = 0; pos < size; ) {
+                    pos += in.transferTo(pos, size - pos, out);
+                }
+            } catch (IOException e) {
+                tmp.delete();
+                throw e;
+            }
+            publish(tmp, id);
+            return fromId(id);
         }
-        // Create a new File for this Blob
-        File blobFile = join(BLOB_FOLDER, this.getId()); // the name of the commit is its sha1 hash
+    }
+
+    /** Hashes FILEPATH and writes it compressed at LEVEL in a single streaming pass. */
+    private static Blob storeCompressed(File filePath, int level) throws IOException {
+        MessageDigest md = sha1Digest();
+        Deflater deflater = new Deflater(level == 0 ? Deflater.NO_COMPRESSION : level);
+        File tmp = tempFile();
         try {
-            blobFile.createNewFile();
+            try (InputStream in = new DigestInputStream(
+                     new BufferedInputStream(new FileInputStream(filePath), BUFFER), md);
+                 OutputStream file = new FileOutputStream(tmp)) {
+                file.write(COMPRESSED_MAGIC);
+                OutputStream out = new DeflaterOutputStream(file, deflater, BUFFER);
+                in.transferTo(out);
+                out.close();
+            }
+            String id = toHex(md.digest());
+            if (exists(id)) {
+                tmp.delete();
+            } else {
+                publish(tmp, id);
+            }
+            return fromId(id);
         } catch (IOException e) {
-            throw new RuntimeException(e);
+            tmp.delete();
+            throw e;
+        } finally {
+            deflater.end();
         }
-        // Serialize the Blob and save it to BLOB_FOLDER
-        writeObject(blobFile, this);
     }
 
-    /** Converts a blob back into a file, and write to the given new file path */
+    /** Returns the id the content of the file at FILEPATH would have as a blob,
+     *  without storing it. The file is streamed, so memory use does not depend on its size. */
+    public static String hash(File filePath) {
+        MessageDigest md = sha1Digest();
+        try (FileChannel in = FileChannel.open(filePath.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buf = ByteBuffer.allocate(BUFFER);
+            while (in.read(buf) > 0) {
+                buf.flip();
+                md.update(buf);
+                buf.clear();
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        return toHex(md.digest());
+    }
+
+    /** Returns true if blob ID is already stored, loose or packed. */
+    static boolean exists(String id) {
+        return findObject(BLOB_FOLDER, id) != null || PackFile.contains(PackFile.BLOB, id);
+    }
+
+    /** Returns a new temporary file, next to (not inside) BLOB_FOLDER so it is never mistaken for an object. */
+    private static File tempFile() throws IOException {
+        return File.createTempFile("blob-", ".tmp", Repository.GITLET_DIR);
+    }
+
+    /** Moves the finished temporary file TMP into place as blob ID. */
+    private static void publish(File tmp, String id) {
+        if (!tmp.renameTo(objectFile(BLOB_FOLDER, id))) {
+            tmp.delete();
+            throw error("Could not store blob %s.", id);
+        }
+    }
+
+    private static MessageDigest sha1Digest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalArgumentException("System does not support SHA-1");
+        }
+    }
+
+    /** Returns a handle to the stored blob ID, or null if ID is null or empty.
+     *  No I/O happens until the content is actually needed
+     *  (getPlainContent, getContent or writeContentToFile),
+     *  so comparing handles by id is free. */
+    public static Blob fromId(String id) {
+        if (id == null || id.equals("")) {
+            return null;
+        }
+        return new Blob(id, null);
+    }
+
+    /** Converts a blob back into a file, and write to the given new file path.
+     *  Content that is not loaded yet is copied from storage rather than read into memory:
+     *  uncompressed blobs with FileChannel.transferTo (loose) or straight from the mapped
+     *  pack (packed), compressed ones by streaming them through an inflater. */
     public void writeContentToFile(File newFilepath) {
-        if (!newFilepath.exists()) {
-            try {
-                newFilepath.createNewFile();
-            } catch (IOException e) {
-                throw new RuntimeException(e);
+        File parent = newFilepath.getParentFile();
+        if (parent != null && !parent.exists()) {
+            parent.mkdirs(); // the file may be in a subdirectory
+        }
+        if (content != null) {
+            // Writes the blob's raw content into the new File
+            writeContents(newFilepath, this.content); // overwrite
+            return;
+        }
+        try {
+            File filePath = findObject(BLOB_FOLDER, id);
+            ByteBuffer packed = filePath == null ? PackFile.rawBlob(id) : null;
+            if ((filePath != null && isRaw(filePath)) || packed != null) {
+                try (FileChannel out = FileChannel.open(newFilepath.toPath(), StandardOpenOption.WRITE,
+                        StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    if (packed != null) {
+                        while (packed.hasRemaining()) {
+                            out.write(packed);
+                        }
+                    } else {
+                        try (FileChannel in = FileChannel.open(filePath.toPath(), StandardOpenOption.READ)) {
+                            long size = in.size();
+                            for (long pos = 0; pos < size; ) {
+                                pos += in.transferTo(pos, size - pos, out);
+                            }
+                        }
+                    }
+                }
+                return;
+            }
+            try (InputStream in = openContent()) {
+                Files.copy(in, newFilepath.toPath(), StandardCopyOption.REPLACE_EXISTING);
             }
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    /** Returns true if the stored blob file FILEPATH holds the content as-is. */
+    private static boolean isRaw(File filePath) throws IOException {
+        try (InputStream in = new FileInputStream(filePath)) {
+            return isRaw(in.readNBytes(SERIAL_MAGIC.length));
+        }
+    }
+
+    /** Returns true if a stored blob beginning with HEAD holds the content as-is. */
+    static boolean isRaw(byte[] head) {
+        return !startsWith(head, COMPRESSED_MAGIC) && !startsWith(head, SERIAL_MAGIC);
+    }
+
+    /** Returns true if a stored blob beginning with HEAD is in the old serialized format. */
+    static boolean isLegacy(byte[] head) {
+        return startsWith(head, SERIAL_MAGIC);
+    }
+
+    /** Opens a stream over the raw content of this blob, loose or packed. */
+    private InputStream openContent() throws IOException {
+        File filePath = findObject(BLOB_FOLDER, id);
+        if (filePath != null) {
+            return decode(new BufferedInputStream(new FileInputStream(filePath), BUFFER));
+        }
+        InputStream packed = PackFile.openBlob(id);
+        if (packed == null) {
+            throw error("Missing blob %s.", id);
         }
-        // Reads the blob's plainContent into the new File
-        writeContents(newFilepath, this.getPlainContent()); // overwrite
+        return packed;
     }
 
-    /** Returns true if two Commits object refer to the same commit */
+    /** Turns a stream over the STORED form of a blob into a stream over its raw content.
+     *  STORED must support mark/reset. Blobs in the old serialized format are decoded in memory. */
+    static InputStream decode(InputStream stored) throws IOException {
+        stored.mark(SERIAL_MAGIC.length);
+        byte[] head = stored.readNBytes(SERIAL_MAGIC.length);
+        if (startsWith(head, COMPRESSED_MAGIC)) {
+            return new InflaterInputStream(stored, new Inflater(), BUFFER);
+        }
+        stored.reset();
+        if (startsWith(head, SERIAL_MAGIC)) {
+            byte[] bytes = stored.readAllBytes();
+            stored.close();
+            return new ByteArrayInputStream(contentOf(bytes));
+        }
+        return stored;
+    }
+
+    /** Returns true if two Blobs have the same content (i.e. the same id). Does not load either. */
     public boolean compareTo(Blob anotherBlob) {
         return anotherBlob.getId().contentEquals(this.id);
     }
 
+    /** Returns true if the blobs A and B have the same content, where either may be null
+     *  (no file). Ids are compared first; only differing ids are looked into, since a blob
+     *  in the old serialized format has an id that hashes its file name as well. */
+    public static boolean sameContent(String a, String b) {
+        if (a == null || b == null || a.equals(b)) {
+            return Objects.equals(a, b);
+        }
+        return contentId(a).equals(contentId(b));
+    }
 
+    /** Returns the id blob ID would have today: the sha-1 of its raw content. That is ID itself,
+     *  unless the blob is in the old serialized format, whose id is sha1(name + content).
+     *  Loose blobs are told apart by their first bytes, packed ones by their pack index;
+     *  only blobs in the old format are read, and hashed as a stream. */
+    static String contentId(String id) {
+        synchronized (CONTENT_IDS) {
+            String known = CONTENT_IDS.get(id);
+            if (known != null) {
+                return known;
+            }
+        }
+        String res = id;
+        try {
+            File filePath = findObject(BLOB_FOLDER, id);
+            boolean legacy;
+            if (filePath != null) {
+                try (InputStream in = new FileInputStream(filePath)) {
+                    legacy = isLegacy(in.readNBytes(SERIAL_MAGIC.length));
+                }
+            } else {
+                legacy = PackFile.isLegacyBlob(id);
+            }
+            if (legacy) {
+                MessageDigest md = sha1Digest();
+                try (InputStream in = new DigestInputStream(fromId(id).openContent(), md)) {
+                    in.transferTo(OutputStream.nullOutputStream());
+                }
+                res = toHex(md.digest());
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        synchronized (CONTENT_IDS) {
+            CONTENT_IDS.put(id, res);
+        }
+        return res;
+    }
 
-    /** Gets the Commit object corresponding to the given sha-1 filename
-     *  @param id filename as sha-1 hash referring to a Commit object
+
+
+    /** Gets the Blob object corresponding to the given sha-1 filename, with its content loaded.
+     *  Returns null if there is no such blob.
+     *  @param id filename as sha-1 hash referring to a Blob object
      */
     public static Blob getBlobFromId(String id) {
         if (id == null || id.equals("")) {
             return null;
         }
+        byte[] content = readContent(id);
+        if (content == null) {
+            return null;
+        }
+        return new Blob(id, content);
+    }
+
+    /** Reads the raw content of blob ID, from its loose file first, then from the packs.
+     *  Returns null if there is no such blob. */
+    private static byte[] readContent(String id) {
         // Get the absolute file path from its sha-1 hash
-        File filePath = join(BLOB_FOLDER, id);
-        if (!filePath.exists()) {
+        File filePath = findObject(BLOB_FOLDER, id);
+        return filePath != null ? contentOf(readContents(filePath)) : PackFile.readBlob(id);
+    }
+
+    /** Returns the content, loading it first if this is a handle. */
+    private byte[] content() {
+        if (content == null) {
+            content = readContent(id);
+            if (content == null) {
+                throw error("Missing blob %s.", id);
+            }
+        }
+        return content;
+    }
+
+    /** Decodes the STORED bytes of a blob into its raw content.
+     *  STORED may be compressed or raw content, or a blob in the old serialized format. */
+    static byte[] contentOf(byte[] stored) {
+        if (startsWith(stored, COMPRESSED_MAGIC)) {
+            return decompress(stored);
+        }
+        if (startsWith(stored, SERIAL_MAGIC)) {
+            String legacy = readLegacyContent(stored);
+            if (legacy != null) {
+                return legacy.getBytes(StandardCharsets.UTF_8);
+            }
+        }
+        return stored;
+    }
+
+    /** Returns the content of a blob written in the old serialized format,
+     *  or null if BYTES are not one (i.e. raw content that merely looks like it). */
+    private static String readLegacyContent(byte[] bytes) {
+        try {
+            return deserialize(bytes, Blob.class).plainContent;
+        } catch (IllegalArgumentException e) {
             return null;
         }
-        // Return the Blob obj if it exists
-        return readObject(filePath, Blob.class);
     }
 
 
@@ -101,12 +438,14 @@ public class Blob implements Serializable {
         return id; // same as hash
     }
 
-    public String getPlainName() {
-        return plainName; // same as hash
+    /** Returns the content decoded as a UTF-8 String. */
+    public String getPlainContent() {
+        return new String(content(), StandardCharsets.UTF_8);
     }
 
-    public String getPlainContent() {
-        return plainContent;
+    /** Returns the raw bytes of the content. */
+    public byte[] getContent() {
+        return content();
     }
 
 }
@@ -4,29 +4,64 @@ import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Predicate;
 
 import static gitlet.Utils.*;
 
 /** Represents a gitlet commit object.
  *  A commit consists of a log message, timestamp,
- *  a mapping of file names to blob references, a parent reference,
+ *  a reference to the Tree of its files, a parent reference,
  *  and (for merges) a second parent reference.
+ *  Commits saved before trees existed hold a flat mapping of file names to blob references instead.
  *
  *  @author flora
  */
 public class Commit implements Serializable {
 
+    /** Pinned to the value computed for the original class, so commits saved before trees stay readable. */
+    private static final long serialVersionUID = -7307059962673975957L;
+
     /** The commit directory, a subdirectory of .gitlet. */
     public static final File COMMIT_FOLDER = join(Repository.GITLET_DIR, "commits");
 
+    /** Config key of the commit cache capacity, counted in file entries (see weight()). */
+    public static final String CACHE_KEY = "core.commitCache";
+    /** Default commit cache capacity. */
+    private static final long DEFAULT_CACHE_CAPACITY = 100000;
+
+    /** Decoded commits by full id, in access order, so the eldest entry is the least recently used.
+     *  Shared by getCommitFromId, and therefore by getParent and Repository.getPointer. */
+    private static final LinkedHashMap<String, Commit> cache = new LinkedHashMap<>(16, 0.75f, true);
+    /** Total weight of the commits in the cache. */
+    private static long cacheWeight;
+    /** Maximum total weight of the cache, read from the config on first use. */
+    private static long cacheCapacity = -1;
+    private static long cacheHits;
+    private static long cacheMisses;
+
+    /** Number of commits decoded by one task of readInOrder. */
+    private static final int READ_BATCH = 256;
+    /** Number of batches per reader thread that readInOrder decodes ahead of its caller. */
+    private static final int READ_AHEAD = 4;
+
     /** The message of this Commit. */
     private final String message;
     /** The timestamp of current Commit. */
     private final Date timestamp;
 
-    /** Mapping of `filenames` to corresponding `Blob` objects.
+    /** Mapping of `filenames` to corresponding `Blob` objects, in commits saved before trees; null otherwise.
      *  Example of mapping: {"hello.txt": "someSHA-1Hash"} */
     private TreeMap<String, String> nameToBlob; //
+    /** The root Tree of the files of this Commit (null in commits saved before trees). */
+    private String treeId;
+    /** Mapping of paths to blob ids, flattened from the tree on first use. */
+    private transient TreeMap<String, String> files;
+    /** Weight of this commit as counted in cacheWeight, or 0 if it is not in the cache. */
+    private transient long cachedWeight;
     /** Parent of the current Commit: a sha-1 hash. */
     private final List<String> parents;
     private final String id;
@@ -35,121 +70,292 @@ public class Commit implements Serializable {
      * Constructor.
      * @param msg Commit message.
      * @param parents Parent of the Commit instance.
+     * @param treeId Root Tree of the files of the Commit instance (already saved).
      * @param timestamp Timestamp of the Commit instance.
      */
-    public Commit(String msg, List<String> parents, TreeMap<String, String> nameToBlob, Date... timestamp) {
+    public Commit(String msg, List<String> parents, String treeId, Date... timestamp) {
         // metadata
         this.message = msg;
         this.timestamp = timestamp[0];
         // references
         this.parents = parents;
-        this.nameToBlob = nameToBlob;
-        this.id = sha1(this.message + this.timestamp.toString() + this.parents
-                + this.nameToBlob.toString());
+        this.treeId = treeId;
+        this.id = sha1(this.message + this.timestamp.toString() + this.parents + this.treeId);
     }
 
 
 
     /* Commit Functions */
 
-    /** Save the Commit object to COMMIT_FOLDER*/
+    /** Save the Commit object to COMMIT_FOLDER.
+     *  The object is written once, under its final id, and published atomically
+     *  (fsync and rename), so a crash never leaves a partial commit behind. */
     public void saveCommit() {
         if (!COMMIT_FOLDER.exists()) {
             COMMIT_FOLDER.mkdir();
         }
-        // Create a new File for this Commit
-        File commitFile = join(COMMIT_FOLDER, this.getId()); // the name of the commit is its sha1 hash
-        try {
-            commitFile.createNewFile();
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+        File commitFile = objectFile(COMMIT_FOLDER, this.getId()); // the name of the commit is its sha1 hash
+        // Serialize the Commit and save it to COMMIT_FOLDER, compressed unless the repo disables it
+        int level = Repository.compressionLevel();
+        if (level == 0) {
+            writeAtomic(commitFile, serialize(this));
+        } else {
+            writeAtomic(commitFile, COMPRESSED_MAGIC, compress(serialize(this), level));
         }
-        // Serialize the Commit and save it to COMMIT_FOLDER
-        writeObject(commitFile, this);
+        CommitIndex.add(this.getId());
+        CommitGraph.add(this);
+        MessageIndex.add(this);
+        cachePut(this);
     }
 
     /** Gets the Commit object corresponding to the given sha-1 filename
      *  @param id filename as sha-1 hash referring to a Commit object
-     *            Allow abbreviated id.
+     *            Allow abbreviated id, resolved through the CommitIndex;
+     *            throws a GitletException if it matches more than one commit.
      */
     public static Commit getCommitFromId(String id) {
         if (id == null || id.equals("")) {
             return null;
         }
-        // Search id in file (might be abbreviated id)
-        int n = id.length();
-        String foundId = id;
-        for (String name : Objects.requireNonNull(plainFilenamesIn(COMMIT_FOLDER))) {
-            if (name.substring(0, n).equals(id)) {
-                foundId = name;
-            }
+        // A full id is looked up directly; an abbreviated one is resolved by the index
+        String foundId = id.length() == UID_LENGTH ? id : CommitIndex.resolve(id);
+        if (foundId == null) {
+            return null;
+        }
+        Commit cached = cacheGet(foundId);
+        if (cached != null) {
+            return cached;
         }
+        Commit commit = read(foundId);
+        if (commit != null) {
+            cachePut(commit);
+        }
+        return commit;
+    }
+
+    /** Reads the commit with the full id ID from disk, or returns null if there is none.
+     *  Loose commits take precedence over packed ones. Bypasses the cache, so it is safe
+     *  to call from several threads at once. */
+    private static Commit read(String id) {
         // Get the absolute file path from its sha-1 hash
-        File filePath = join(COMMIT_FOLDER, foundId);
-        if (!filePath.exists()) {
-            return null;
+        File filePath = findObject(COMMIT_FOLDER, id);
+        if (filePath != null) {
+            return readCompressedObject(filePath, Commit.class);
         }
-        // Return the Commit obj if it exists
-        return readObject(filePath, Commit.class);
+        byte[] packed = PackFile.readCommit(id);
+        return packed == null ? null : deserialize(decompress(packed), Commit.class);
     }
 
-    /** Update current Commit according to staged addition or removal.
-     * @param area can only be Add || Rm */
-    public void updateCommitMapTo(StagingArea area) {
-        if (area.areaName.equals("Add") || area.areaName.equals("add")) { // if this is the add
-            for (String plainName : area.nameSet()) {
-                // For all staged files, update/insert mappings
-                this.put(plainName, area.get(plainName)); // this == curCommit, update/add new entry
+    /** Reads the commits IDS (full ids) and passes each to ACTION, in the order of IDS,
+     *  until ACTION returns false. The commits are decoded ahead in batches on a pool with
+     *  a thread per core, while ACTION runs on the calling thread. At most READ_AHEAD
+     *  batches are held at a time, so memory does not grow with the number of commits;
+     *  the commits do not go through the cache either. Ids that are not stored are skipped. */
+    public static void readInOrder(List<String> ids, Predicate<Commit> action) {
+        int threads = Runtime.getRuntime().availableProcessors();
+        ExecutorService pool = Executors.newFixedThreadPool(threads, task -> {
+            Thread t = new Thread(task, "gitlet-commit-reader");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            Deque<Future<List<Commit>>> ahead = new ArrayDeque<>();
+            int next = 0;
+            while (next < ids.size() || !ahead.isEmpty()) {
+                while (next < ids.size() && ahead.size() < READ_AHEAD * threads) {
+                    List<String> batch = ids.subList(next, Math.min(ids.size(), next + READ_BATCH));
+                    ahead.add(pool.submit(() -> {
+                        List<Commit> commits = new ArrayList<>(batch.size());
+                        for (String id : batch) {
+                            commits.add(read(id));
+                        }
+                        return commits;
+                    }));
+                    next += batch.size();
+                }
+                for (Commit commit : ahead.poll().get()) {
+                    if (commit != null && !action.test(commit)) {
+                        return;
+                    }
+                }
             }
-        } else {
-            // stageRemoval
-            for (String plainName : area.nameSet()) {
-                this.remove(plainName); // rm
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw error("Interrupted.");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
             }
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            pool.shutdownNow();
         }
     }
 
-    /* Commit Map operations */
-    /** Insert a key-value set into the nameToBlob map of the commit */
-    private void put(String plainName, Blob blob) {
-        String id = blob.getId();
-        nameToBlob.put(plainName, id); // what's ACTUALLY put into the map is the ID
-        File filepath = join(COMMIT_FOLDER, this.id);
-        writeObject(filepath, this);
-    }
-    /** remove a key-val set from the map
-     * @return Blob of the id corresponding to the given key
-     */
-    public Blob remove(String plainName) {
-        String blobId = nameToBlob.remove(plainName);
-        File filepath = join(COMMIT_FOLDER, this.id);
-        writeObject(filepath, this); // overwrite the original file as an update
-        return Blob.getBlobFromId(blobId);
+    /* Commit cache */
+
+    /** Returns the cached commit with the full id ID, or null, counting the hit or miss. */
+    private static synchronized Commit cacheGet(String id) {
+        Commit cached = cache.get(id);
+        if (cached != null) {
+            cacheHits++;
+        } else {
+            cacheMisses++;
+        }
+        return cached;
     }
 
-    /** Adds a parent to the current parent list.
-     *  Used for merging commits. */
-    public void addParent(Commit parent) {
-        this.parents.add(parent.getId());
-        this.saveCommit();// update commit file
+    /** Adds COMMIT to the cache, evicting least recently used commits
+     *  until the total weight fits the capacity again. */
+    private static synchronized void cachePut(Commit commit) {
+        if (cacheCapacity < 0) {
+            cacheCapacity = readCapacity();
+        }
+        Commit old = cache.put(commit.getId(), commit);
+        if (old != null) {
+            cacheWeight -= old.cachedWeight;
+            old.cachedWeight = 0;
+        }
+        commit.cachedWeight = commit.weight();
+        cacheWeight += commit.cachedWeight;
+        evict();
     }
 
-    /** Given a plainName, return the corresponding blob id in commit map
+    /** Returns the cache capacity set in the config, or the default.
+     *  Fails if it is not a non-negative number. */
+    private static long readCapacity() {
+        long capacity;
+        try {
+            capacity = Long.parseLong(
+                    Repository.getConfig(CACHE_KEY, String.valueOf(DEFAULT_CACHE_CAPACITY)).trim());
+        } catch (NumberFormatException e) {
+            capacity = -1;
+        }
+        if (capacity < 0) {
+            throw error("%s must be a number of file entries.", CACHE_KEY);
+        }
+        return capacity;
+    }
+
+    /** Counts the current weight of COMMIT, which has grown since it was cached (its tree
+     *  was flattened), and evicts least recently used commits if it no longer fits.
+     *  Does nothing if COMMIT is not in the cache. */
+    private static synchronized void cacheReweigh(Commit commit) {
+        if (commit.cachedWeight == 0) {
+            return;
+        }
+        long weight = commit.weight();
+        cacheWeight += weight - commit.cachedWeight;
+        commit.cachedWeight = weight;
+        evict();
+    }
+
+    /** Evicts least recently used commits until the total weight fits the capacity,
+     *  always keeping the most recently used one. */
+    private static void evict() {
+        Iterator<Commit> eldest = cache.values().iterator();
+        while (cacheWeight > cacheCapacity && cache.size() > 1) {
+            Commit commit = eldest.next();
+            cacheWeight -= commit.cachedWeight;
+            commit.cachedWeight = 0;
+            eldest.remove();
+        }
+    }
+
+    /** Returns the approximate size of this commit, in file entries held in memory.
+     *  (The files of a tree commit are only counted once they have been flattened.) */
+    private long weight() {
+        TreeMap<String, String> map = files != null ? files : nameToBlob;
+        return 1 + (map == null ? 0 : map.size());
+    }
+
+    /** Makes the cache read its capacity from the config again on next use.
+     *  The cached commits themselves stay valid, since commits never change. */
+    static void reloadConfig() {
+        cacheCapacity = -1;
+    }
+
+    /** Returns the number of getCommitFromId calls answered from the cache. */
+    public static long cacheHits() {
+        return cacheHits;
+    }
+
+    /** Returns the number of getCommitFromId calls that had to read a commit from disk. */
+    public static long cacheMisses() {
+        return cacheMisses;
+    }
+
+    /** Returns the number of commits currently in the cache. */
+    public static synchronized int cacheSize() {
+        return cache.size();
+    }
+
+    /** Returns the ids of all commits, loose or packed, in lexicographic order. */
+    public static List<String> allIds() {
+        TreeSet<String> ids = new TreeSet<>(PackFile.ids(PackFile.COMMIT));
+        List<String> loose = objectIdsIn(COMMIT_FOLDER);
+        if (loose != null) {
+            ids.addAll(loose);
+        }
+        return new ArrayList<>(ids);
+    }
+
+    /* Commit Map operations */
+    /** Given a plainName, return a handle to the corresponding blob in commit map
+     *  (null if the file is not tracked). The content is only read when needed.
      *  NOTE: this is a map-like operation */
     public Blob get(String plainName) {
-        // If the blob does not exist, return an empty string.
-        String id = nameToBlob.getOrDefault(plainName, null);
-        return Blob.getBlobFromId(id);
+        return Blob.fromId(getBlobId(plainName));
+    }
+
+    /** Given a plainName, returns the id of the corresponding blob in commit map,
+     *  or null if the file is not tracked. */
+    public String getBlobId(String plainName) {
+        if (files == null && treeId != null) {
+            return Tree.blobIdAt(treeId, plainName); // reads only the trees on the path
+        }
+        return files().get(plainName);
     }
 
     /** Given a filename, returns if a key with the PLAINNAME exists in the commit map. */
     public boolean containsFile(String plainName) {
-        return nameToBlob.containsKey(plainName);
+        return getBlobId(plainName) != null;
     }
 
     /** Returns a set of filenames in the current commit */
     public Set<String> nameSet() {
-        return nameToBlob.keySet();
+        return files().keySet();
+    }
+
+    /** Returns the id of the root Tree of this commit's files.
+     *  For a commit saved before trees, the tree is built (and saved) from its flat map. */
+    public String getTreeId() {
+        if (treeId == null) {
+            treeId = Tree.write(nameToBlob);
+        }
+        return treeId;
+    }
+
+    /** Returns the paths of the files whose blob differs between this Commit and OTHER,
+     *  in lexicographic order. Directories identical in both are skipped. */
+    public Set<String> changedFiles(Commit other) {
+        Set<String> changed = new TreeSet<>();
+        Tree.diff(getTreeId(), other.getTreeId(), "", changed);
+        return changed;
+    }
+
+    /** Returns the flat map of paths to blob ids, flattening the tree on first use. */
+    private synchronized TreeMap<String, String> files() {
+        if (files == null) {
+            if (treeId == null) {
+                files = nameToBlob;
+            } else {
+                files = new TreeMap<>();
+                Tree.flatten(treeId, "", files);
+                cacheReweigh(this);
+            }
+        }
+        return files;
     }
 
     /** Returns true if two Commits object refer to the same commit */
@@ -176,6 +382,36 @@ public class Commit implements Serializable {
         return res;
     }
 
+    /** Returns the ids of the parents of the Commit, without reading them (empty for the initial commit). */
+    public List<String> getParentIds() {
+        return parents == null ? Collections.emptyList() : Collections.unmodifiableList(parents);
+    }
+
+    /** Returns the commits from the commit ID back along first parents, newest first.
+     *  Each commit is read only when the iterator reaches it, and only its parent ids
+     *  are looked at to go on, so a walk that stops early reads no more than it returned. */
+    public static Iterator<Commit> firstParents(String id) {
+        return new Iterator<>() {
+            private String next = id;
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public Commit next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                Commit commit = getCommitFromId(next);
+                List<String> parents = commit.getParentIds();
+                next = parents.isEmpty() ? null : parents.get(0);
+                return commit;
+            }
+        };
+    }
+
     /** Returns the sha-1 hash of the Commit object. */
     public String getId() {
         return this.id;
@@ -183,7 +419,7 @@ public class Commit implements Serializable {
     /** Returns the String data of the Commit object. */
     public String getData() {
         return this.message + "\n" + this.timestamp.toString() + "\n" + this.parents.toString()
-                + "\n" + this.nameToBlob.toString();
+                + "\n" + (this.treeId != null ? this.treeId : this.nameToBlob.toString());
     }
 
     public Date getTimestamp() {
@@ -194,7 +430,7 @@ public class Commit implements Serializable {
      * Example of mapping: {"hello.txt": "someSHA-1Hash"} */
     public TreeMap<String, String> getMap() {
         // !: COPY
-        return new TreeMap<>(this.nameToBlob);
+        return new TreeMap<>(files());
     }
 
 }
@@ -0,0 +1,459 @@
+package gitlet;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import static gitlet.Utils.*;
+
+/** A persistent commit-graph, like git's: the parents, generation number and timestamp
+ *  of every commit, so that the history can be walked without reading commit objects.
+ *  The generation of a commit without parents is 1, and that of any other commit is one
+ *  more than the largest generation of its parents. Every ancestor of a commit thus has
+ *  a smaller generation than the commit, and a walk that always takes the commit of the
+ *  largest generation next reaches each commit only after all of its descendants.
+ *  The graph is kept in two files:
+ *      GRAPH_FILE, memory-mapped: GRAPH_MAGIC, a count N, the N raw ids in order,
+ *          then per commit, in the same order:
+ *          [first parent: 4 bytes][second parent: 4 bytes][generation: 4 bytes][timestamp: 8 bytes]
+ *          where a parent is a position in the table, or NONE;
+ *      TAIL_FILE, to which every new commit is appended:
+ *          [id: 20 bytes][parent count: 1 byte][parent ids: 2 x 20 bytes][generation: 4 bytes][timestamp: 8 bytes]
+ *  The tail is folded into GRAPH_FILE once it holds TAIL_LIMIT commits, and by gc.
+ *  Like the commit index, the graph can always be rebuilt from the commits, and is
+ *  whenever a commit turns out to be missing from it (e.g. in an older repository).
+ *
+ *  @author flora
+ */
+public class CommitGraph {
+
+    /** The graph file in .gitlet/. */
+    public static final File GRAPH_FILE = join(Repository.GITLET_DIR, "commit-graph");
+    /** The commits added since GRAPH_FILE was written. */
+    public static final File TAIL_FILE = join(Repository.GITLET_DIR, "commit-graph-tail");
+
+    private static final byte[] GRAPH_MAGIC = {'G', 'C', 'G', 'R'};
+    /** Length of the header: magic and commit count. */
+    private static final int HEADER = GRAPH_MAGIC.length + 4;
+    /** Length of the raw (binary) form of an id. */
+    private static final int ID_BYTES = UID_LENGTH / 2;
+    /** Length of one record of GRAPH_FILE. */
+    private static final int RECORD = 4 + 4 + 4 + 8;
+    /** Length of one record of TAIL_FILE. */
+    private static final int TAIL_RECORD = ID_BYTES + 1 + 2 * ID_BYTES + 4 + 8;
+    /** Number of commits in the tail at which it is folded into GRAPH_FILE. */
+    private static final int TAIL_LIMIT = 256;
+    /** Parent position meaning "no parent". */
+    private static final int NONE = -1;
+
+    /** Flags of the merge-base walk: reachable from the first, or the second commit. */
+    private static final int FROM_A = 1;
+    private static final int FROM_B = 2;
+
+    /* Instance variables */
+
+    // Commits are numbered by their position in GRAPH_FILE, followed by those in the tail.
+    /** The mapped GRAPH_FILE, or null if there is none. */
+    private final ByteBuffer graph;
+    /** Number of commits in GRAPH_FILE. */
+    private final int graphSize;
+    /** Raw ids, parents (numbers), generations and timestamps of the commits in the tail. */
+    private final List<byte[]> tailIds = new ArrayList<>();
+    private final List<int[]> tailParents = new ArrayList<>();
+    private final List<Integer> tailGenerations = new ArrayList<>();
+    private final List<Long> tailTimes = new ArrayList<>();
+    /** Numbers of the commits in the tail, by id. */
+    private final Map<String, Integer> tailNumbers = new HashMap<>();
+
+    /** Opens the graph as stored in GRAPH_FILE and TAIL_FILE. */
+    private CommitGraph() {
+        ByteBuffer mapped = null;
+        if (GRAPH_FILE.exists()) {
+            mapped = map(GRAPH_FILE);
+            byte[] magic = new byte[GRAPH_MAGIC.length];
+            mapped.get(0, magic);
+            if (!startsWith(magic, GRAPH_MAGIC)) {
+                mapped = null; // damaged; the commits will be found missing and the graph rebuilt
+            }
+        }
+        graph = mapped;
+        graphSize = mapped == null ? 0 : mapped.getInt(GRAPH_MAGIC.length);
+        if (TAIL_FILE.exists()) {
+            readTail(ByteBuffer.wrap(readContents(TAIL_FILE)));
+        }
+    }
+
+    /** Reads the commits of TAIL, up to the first one that is incomplete
+     *  (cut short by a crash) or whose parents are unknown. */
+    private void readTail(ByteBuffer tail) {
+        byte[] parentId = new byte[ID_BYTES];
+        while (tail.remaining() >= TAIL_RECORD) {
+            byte[] id = new byte[ID_BYTES];
+            tail.get(id);
+            int parentCount = tail.get();
+            int[] parents = new int[Math.max(parentCount, 0)];
+            for (int i = 0; i < 2; i++) {
+                tail.get(parentId);
+                if (i < parents.length) {
+                    parents[i] = find(toHex(parentId), parentId);
+                }
+            }
+            int generation = tail.getInt();
+            long time = tail.getLong();
+            if (parentCount < 0 || parentCount > 2 || generation <= 0
+                    || Arrays.stream(parents).anyMatch(p -> p == NONE)) {
+                return;
+            }
+            String hex = toHex(id);
+            if (find(hex, id) != NONE) {
+                continue; // already folded into GRAPH_FILE
+            }
+            tailNumbers.put(hex, graphSize + tailIds.size());
+            tailIds.add(id);
+            tailParents.add(parents);
+            tailGenerations.add(generation);
+            tailTimes.add(time);
+        }
+    }
+
+    /* Updating */
+
+    /** Adds COMMIT, which has just been saved, to the graph. */
+    public static void add(Commit commit) {
+        CommitGraph g = new CommitGraph();
+        if (g.find(commit.getId()) != NONE) {
+            return;
+        }
+        List<String> parentIds = commit.getParentIds();
+        int generation = 1;
+        for (String parentId : parentIds) {
+            int parent = g.find(parentId);
+            if (parent == NONE) {
+                rebuild(); // picks up COMMIT as well, since it is saved already
+                return;
+            }
+            generation = Math.max(generation, g.generation(parent) + 1);
+        }
+        ByteBuffer record = ByteBuffer.allocate(TAIL_RECORD);
+        record.put(toBytes(commit.getId()));
+        record.put((byte) parentIds.size());
+        for (int i = 0; i < 2; i++) {
+            record.put(i < parentIds.size() ? toBytes(parentIds.get(i)) : new byte[ID_BYTES]);
+        }
+        record.putInt(generation);
+        record.putLong(commit.getTimestamp().getTime());
+        try (FileOutputStream out = new FileOutputStream(TAIL_FILE, true)) {
+            out.write(record.array());
+        } catch (IOException e) {
+            return; // the commit will be found missing and the graph rebuilt
+        }
+        if (g.tailIds.size() + 1 >= TAIL_LIMIT) {
+            write();
+        }
+    }
+
+    /** Folds the tail into GRAPH_FILE. */
+    public static void write() {
+        new CommitGraph().fold();
+    }
+
+    /** Writes all commits of this graph to a new GRAPH_FILE and drops the tail. */
+    private void fold() {
+        int n = size();
+        // The commits of GRAPH_FILE are in order already: merge them with the sorted tail
+        List<Integer> tail = new ArrayList<>(tailNumbers.values());
+        tail.sort(Comparator.comparing(this::id));
+        int[] order = new int[n];
+        int g = 0;
+        int t = 0;
+        for (int i = 0; i < n; i++) {
+            if (t == tail.size() || (g < graphSize && compareIds(g, tail.get(t)) < 0)) {
+                order[i] = g++;
+            } else {
+                order[i] = tail.get(t++);
+            }
+        }
+        int[] newPos = new int[n];
+        for (int i = 0; i < n; i++) {
+            newPos[order[i]] = i;
+        }
+        byte[] ids = new byte[n * ID_BYTES];
+        int[] parent1 = new int[n];
+        int[] parent2 = new int[n];
+        int[] generations = new int[n];
+        long[] times = new long[n];
+        for (int i = 0; i < n; i++) {
+            int c = order[i];
+            System.arraycopy(rawId(c), 0, ids, i * ID_BYTES, ID_BYTES);
+            int[] parents = parents(c);
+            parent1[i] = parents.length > 0 ? newPos[parents[0]] : NONE;
+            parent2[i] = parents.length > 1 ? newPos[parents[1]] : NONE;
+            generations[i] = generation(c);
+            times[i] = time(c);
+        }
+        writeGraph(ids, parent1, parent2, generations, times);
+    }
+
+    /** Rebuilds the graph from the commits currently stored, loose or packed. */
+    public static void rebuild() {
+        List<String> all = new ArrayList<>();
+        for (String id : Commit.allIds()) { // already sorted
+            if (id.length() == UID_LENGTH) {
+                all.add(id);
+            }
+        }
+        int n = all.size();
+        Map<String, Integer> positions = new HashMap<>();
+        for (int i = 0; i < n; i++) {
+            positions.put(all.get(i), i);
+        }
+        byte[] ids = new byte[n * ID_BYTES];
+        int[] parent1 = new int[n];
+        int[] parent2 = new int[n];
+        long[] times = new long[n];
+        for (int i = 0; i < n; i++) {
+            Commit commit = Commit.getCommitFromId(all.get(i));
+            System.arraycopy(toBytes(all.get(i)), 0, ids, i * ID_BYTES, ID_BYTES);
+            List<String> parents = commit.getParentIds();
+            parent1[i] = parents.size() > 0 ? positions.getOrDefault(parents.get(0), NONE) : NONE;
+            parent2[i] = parents.size() > 1 ? positions.getOrDefault(parents.get(1), NONE) : NONE;
+            times[i] = commit.getTimestamp().getTime();
+        }
+        writeGraph(ids, parent1, parent2, generations(parent1, parent2), times);
+    }
+
+    /** Returns the generation numbers of the commits whose parents are PARENT1 and PARENT2. */
+    static int[] generations(int[] parent1, int[] parent2) {
+        int n = parent1.length;
+        int[] generations = new int[n];
+        // Depth-first, with an explicit stack: each commit waits on the stack for one
+        // parent at a time, so the stack is a chain of ancestors and never exceeds N
+        int[] stack = new int[n];
+        for (int start = 0; start < n; start++) {
+            int top = 0;
+            stack[top++] = start;
+            while (top > 0) {
+                int c = stack[top - 1];
+                if (generations[c] != 0) {
+                    top--;
+                } else if (parent1[c] != NONE && generations[parent1[c]] == 0) {
+                    stack[top++] = parent1[c];
+                } else if (parent2[c] != NONE && generations[parent2[c]] == 0) {
+                    stack[top++] = parent2[c];
+                } else {
+                    int g = 0;
+                    if (parent1[c] != NONE) {
+                        g = generations[parent1[c]];
+                    }
+                    if (parent2[c] != NONE) {
+                        g = Math.max(g, generations[parent2[c]]);
+                    }
+                    generations[c] = g + 1;
+                    top--;
+                }
+            }
+        }
+        return generations;
+    }
+
+    /** Writes a new GRAPH_FILE holding the commits whose sorted raw ids are IDS,
+     *  with the given parents, generations and timestamps, and drops the tail. */
+    static void writeGraph(byte[] ids, int[] parent1, int[] parent2, int[] generations, long[] times) {
+        int n = parent1.length;
+        ByteBuffer buf = ByteBuffer.allocate(HEADER + n * (ID_BYTES + RECORD));
+        buf.put(GRAPH_MAGIC);
+        buf.putInt(n);
+        buf.put(ids);
+        for (int i = 0; i < n; i++) {
+            buf.putInt(parent1[i]);
+            buf.putInt(parent2[i]);
+            buf.putInt(generations[i]);
+            buf.putLong(times[i]);
+        }
+        writeAtomic(GRAPH_FILE, buf.array());
+        TAIL_FILE.delete();
+    }
+
+    /* Walking */
+
+    /** Returns the id of a best common ancestor of the commits A and B: one that is not
+     *  an ancestor of any other common ancestor. Returns null if there is none. */
+    public static String mergeBase(String a, String b) {
+        CommitGraph g = new CommitGraph();
+        if (g.find(a) == NONE || g.find(b) == NONE) {
+            rebuild();
+            g = new CommitGraph();
+        }
+        int base = g.mergeBase(g.find(a), g.find(b));
+        return base == NONE ? null : g.id(base);
+    }
+
+    /** Returns the number of a best common ancestor of the commits A and B, or NONE.
+     *  Both histories are walked together, always taking the commit of the largest
+     *  generation (then the latest) next, and marking each commit with the sides it is
+     *  reachable from. When a commit comes up, all its descendants have come up before,
+     *  so its marks are final; the first one marked from both sides is a common ancestor
+     *  that no other common ancestor descends from. Commits older than it are never read. */
+    private int mergeBase(int a, int b) {
+        if (a == b) {
+            return a;
+        }
+        Map<Integer, Integer> marks = new HashMap<>();
+        PriorityQueue<Integer> queue = new PriorityQueue<>(
+                Comparator.comparingInt(this::generation).thenComparingLong(this::time).reversed());
+        marks.put(a, FROM_A);
+        marks.put(b, FROM_B);
+        queue.add(a);
+        queue.add(b);
+        while (!queue.isEmpty()) {
+            int c = queue.poll();
+            int mark = marks.get(c);
+            if (mark == (FROM_A | FROM_B)) {
+                return c;
+            }
+            for (int parent : parents(c)) {
+                int old = marks.getOrDefault(parent, 0);
+                if ((old | mark) != old) {
+                    marks.put(parent, old | mark);
+                    queue.add(parent);
+                }
+            }
+        }
+        return NONE;
+    }
+
+    /** Returns the id of the commit reached from the commit ID by going back STEPS first
+     *  parents, or null if the history ends before that. Commits in the graph are not read;
+     *  those missing from it are read from disk, but the graph is not rebuilt, so that
+     *  read-only commands can use this. */
+    public static String firstParentAncestor(String id, int steps) {
+        CommitGraph g = new CommitGraph();
+        for (int i = 0; i < steps && id != null; i++) {
+            int c = g.find(id);
+            if (c != NONE) {
+                int[] parents = g.parents(c);
+                id = parents.length == 0 ? null : g.id(parents[0]);
+            } else {
+                List<String> parents = Commit.getCommitFromId(id).getParentIds();
+                id = parents.isEmpty() ? null : parents.get(0);
+            }
+        }
+        return id;
+    }
+
+    /* Reading */
+
+    /** Returns the number of commits in the graph. */
+    private int size() {
+        return graphSize + tailIds.size();
+    }
+
+    /** Returns the number of the commit ID, or NONE if it is not in the graph. */
+    private int find(String id) {
+        try {
+            return find(id, toBytes(id));
+        } catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+            return NONE; // not an id at all
+        }
+    }
+
+    /** Returns the number of the commit ID, whose raw form is KEY, or NONE if it is not in the graph. */
+    private int find(String id, byte[] key) {
+        Integer inTail = tailNumbers.get(id);
+        if (inTail != null) {
+            return inTail;
+        }
+        if (graph == null) {
+            return NONE;
+        }
+        int lo = 0;
+        int hi = graphSize - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = compareIdAt(mid, key);
+            if (cmp < 0) {
+                lo = mid + 1;
+            } else if (cmp > 0) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return NONE;
+    }
+
+    /** Compares the id at position POS of GRAPH_FILE with the raw id KEY. */
+    private int compareIdAt(int pos, byte[] key) {
+        int base = HEADER + pos * ID_BYTES;
+        for (int i = 0; i < ID_BYTES; i++) {
+            int cmp = Integer.compare(graph.get(base + i) & 0xff, key[i] & 0xff);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return 0;
+    }
+
+    /** Compares the ids of the commits C and D. */
+    private int compareIds(int c, int d) {
+        return Arrays.compareUnsigned(rawId(c), rawId(d));
+    }
+
+    /** Returns the offset of the record of commit C, which is in GRAPH_FILE. */
+    private int recordOf(int c) {
+        return HEADER + graphSize * ID_BYTES + c * RECORD;
+    }
+
+    private byte[] rawId(int c) {
+        if (c >= graphSize) {
+            return tailIds.get(c - graphSize);
+        }
+        byte[] raw = new byte[ID_BYTES];
+        graph.get(HEADER + c * ID_BYTES, raw);
+        return raw;
+    }
+
+    private String id(int c) {
+        return toHex(rawId(c));
+    }
+
+    private int[] parents(int c) {
+        if (c >= graphSize) {
+            return tailParents.get(c - graphSize);
+        }
+        int first = graph.getInt(recordOf(c));
+        int second = graph.getInt(recordOf(c) + 4);
+        if (first == NONE) {
+            return new int[0];
+        }
+        return second == NONE ? new int[]{first} : new int[]{first, second};
+    }
+
+    private int generation(int c) {
+        return c >= graphSize ? tailGenerations.get(c - graphSize) : graph.getInt(recordOf(c) + 8);
+    }
+
+    private long time(int c) {
+        return c >= graphSize ? tailTimes.get(c - graphSize) : graph.getLong(recordOf(c) + 12);
+    }
+
+    /** Maps the whole FILE read-only. */
+    private static ByteBuffer map(File file) {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+}
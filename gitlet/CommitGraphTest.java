@@ -0,0 +1,163 @@
+package gitlet;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+
+import static gitlet.Utils.*;
+
+/** Tests of CommitGraph.mergeBase against a brute-force walk of the commits' ancestors.
+ *
+ *  @author flora
+ */
+public class CommitGraphTest {
+    public static final File CWD = Repository.CWD;
+
+    /** The id of the empty tree, which every commit of these tests has. */
+    private String emptyTree;
+    /** Timestamp of the next commit made by commit(), so that every commit is distinct. */
+    private long time = 1000;
+
+    /** Starts every test from a fresh repository. */
+    @Before
+    public void setUp() throws IOException {
+        if (Repository.GITLET_DIR.exists()) {
+            cleanRepo(CWD);
+        }
+        Repository.init();
+        emptyTree = Tree.write(new TreeMap<>());
+    }
+
+    /** Saves a commit with the given PARENTS and returns its id. */
+    private String commit(String... parents) {
+        Commit commit = new Commit("commit " + time, Arrays.asList(parents), emptyTree, new Date(time));
+        time += 1000;
+        commit.saveCommit();
+        return commit.getId();
+    }
+
+    /** Returns the id of the initial commit. */
+    private String initial() {
+        return readContentsAsString(Repository.HEAD);
+    }
+
+    /** Returns ID and all its ancestors, found by reading the commits. */
+    private static Set<String> ancestors(String id) {
+        Set<String> seen = new HashSet<>();
+        Deque<String> todo = new ArrayDeque<>();
+        todo.add(id);
+        while (!todo.isEmpty()) {
+            String c = todo.poll();
+            if (seen.add(c)) {
+                List<String> parents = Commit.getCommitFromId(c).getParentIds();
+                if (parents != null) {
+                    todo.addAll(parents);
+                }
+            }
+        }
+        return seen;
+    }
+
+    /** Returns the best common ancestors of A and B: the common ancestors that are not
+     *  an ancestor of another common ancestor. */
+    private static Set<String> bestCommonAncestors(String a, String b) {
+        Set<String> common = ancestors(a);
+        common.retainAll(ancestors(b));
+        Set<String> best = new HashSet<>(common);
+        for (String c : common) {
+            Set<String> below = ancestors(c);
+            below.remove(c);
+            best.removeAll(below);
+        }
+        return best;
+    }
+
+    /** Asserts that mergeBase(A, B) is one of the best common ancestors of A and B. */
+    private static void assertMergeBase(String a, String b) {
+        Set<String> best = bestCommonAncestors(a, b);
+        String base = CommitGraph.mergeBase(a, b);
+        Assert.assertTrue("merge base of " + a + " and " + b + " is " + base + ", not one of " + best,
+                best.contains(base));
+    }
+
+    /** Test the merge bases of a criss-cross merge, which has two best common ancestors. */
+    @Test
+    public void testCrissCross() {
+        String root = commit(initial());
+        String b1 = commit(root);
+        String c1 = commit(root);
+        String b2 = commit(b1, c1);
+        String c2 = commit(c1, b1);
+        String b3 = commit(b2);
+        String c3 = commit(c2);
+
+        Assert.assertEquals(2, bestCommonAncestors(b2, c2).size());
+        assertMergeBase(b2, c2);
+        assertMergeBase(b3, c3);
+        assertMergeBase(c3, b3);
+        // One side an ancestor of the other, and a commit with itself
+        Assert.assertEquals(root, CommitGraph.mergeBase(root, b3));
+        Assert.assertEquals(b1, CommitGraph.mergeBase(b3, b1));
+        Assert.assertEquals(c3, CommitGraph.mergeBase(c3, c3));
+    }
+
+    /** Test random histories of branches that merge each other back and forth,
+     *  both before and after the graph is folded, and after it is lost. */
+    @Test
+    public void testRandomHistories() {
+        Random random = new Random(21);
+        List<String> commits = new ArrayList<>();
+        commits.add(initial());
+        // More commits than fit in the tail of the graph, so part of them are folded into it
+        for (int i = 0; i < 300; i++) {
+            String parent = commits.get(commits.size() - 1 - random.nextInt(Math.min(commits.size(), 8)));
+            if (commits.size() > 2 && random.nextInt(3) == 0) {
+                String other = commits.get(commits.size() - 1 - random.nextInt(Math.min(commits.size(), 12)));
+                commits.add(other.equals(parent) ? commit(parent) : commit(parent, other));
+            } else {
+                commits.add(commit(parent));
+            }
+        }
+        List<String[]> pairs = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            pairs.add(new String[]{commits.get(random.nextInt(commits.size())),
+                commits.get(random.nextInt(commits.size()))});
+        }
+        for (String[] pair : pairs) {
+            assertMergeBase(pair[0], pair[1]);
+        }
+        CommitGraph.write();
+        for (String[] pair : pairs) {
+            assertMergeBase(pair[0], pair[1]);
+        }
+        CommitGraph.GRAPH_FILE.delete();
+        CommitGraph.TAIL_FILE.delete();
+        for (String[] pair : pairs) {
+            assertMergeBase(pair[0], pair[1]);
+        }
+    }
+
+    /** Test that commits with no common ancestor have no merge base. */
+    @Test
+    public void testUnrelated() {
+        String a = commit(initial());
+        Commit root = new Commit("another initial commit", null, emptyTree, new Date(time));
+        root.saveCommit();
+        String b = commit(root.getId());
+        Assert.assertTrue(bestCommonAncestors(a, b).isEmpty());
+        Assert.assertNull(CommitGraph.mergeBase(a, b));
+    }
+}
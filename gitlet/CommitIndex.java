@@ -0,0 +1,221 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static gitlet.Utils.*;
+
+/** A persistent, sorted index of all commit ids, used to resolve abbreviated ids.
+ *  The index file holds one fixed-width record (the 40-char id and a newline) per commit,
+ *  in lexicographic order, so a prefix is resolved by binary search over the records
+ *  without listing COMMIT_FOLDER.
+ *  Like the commit-graph, new commits are appended to TAIL_FILE, in records of the same form,
+ *  which is merged into INDEX_FILE (written atomically) once it holds TAIL_LIMIT commits.
+ *  The index can always be rebuilt from the commits, and is whenever it is missing or
+ *  damaged, or a prefix is not found in it while COMMIT_FOLDER has changed since the index
+ *  was last written (it may then lack commits saved by an older version).
+ *
+ *  @author flora
+ */
+public class CommitIndex {
+
+    /** The index file in .gitlet/. */
+    public static final File INDEX_FILE = join(Repository.GITLET_DIR, "commit-index");
+
+    /** The commits added since INDEX_FILE was written, in the order they were saved. */
+    public static final File TAIL_FILE = join(Repository.GITLET_DIR, "commit-index-tail");
+
+    /** Length in bytes of one record: a full id followed by '\n'. */
+    private static final int RECORD = UID_LENGTH + 1;
+    /** Number of commits in the tail at which it is merged into INDEX_FILE. */
+    private static final int TAIL_LIMIT = 256;
+
+    /** Returns the full id of the only commit whose id starts with PREFIX,
+     *  or null if there is none.
+     *  Throws a GitletException if more than one commit matches. */
+    public static String resolve(String prefix) {
+        if (prefix == null || prefix.isEmpty() || prefix.length() > UID_LENGTH) {
+            return null;
+        }
+        try {
+            String found = lookup(prefix);
+            if (found != null || !isStale()) {
+                return found;
+            }
+        } catch (IOException e) {
+            // Missing or damaged; rebuilt below
+        }
+        rebuild();
+        try {
+            return lookup(prefix);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    /** Returns true if commits may have been stored since the index was last written:
+     *  COMMIT_FOLDER or one of its fan-out directories changed no earlier than it did. */
+    private static boolean isStale() {
+        long written = Math.max(INDEX_FILE.lastModified(), TAIL_FILE.lastModified());
+        if (Commit.COMMIT_FOLDER.lastModified() >= written) {
+            return true;
+        }
+        File[] dirs = Commit.COMMIT_FOLDER.listFiles(File::isDirectory);
+        if (dirs != null) {
+            for (File dir : dirs) {
+                if (dir.lastModified() >= written) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /** Returns the full id of the only indexed commit whose id starts with PREFIX, or null
+     *  if there is none.
+     *  Throws an IOException if INDEX_FILE is missing or damaged, and a GitletException
+     *  if more than one commit matches. */
+    private static String lookup(String prefix) throws IOException {
+        String found = null;
+        try (RandomAccessFile index = new RandomAccessFile(INDEX_FILE, "r")) {
+            if (index.length() % RECORD != 0) {
+                throw new IOException("damaged commit index");
+            }
+            long n = index.length() / RECORD;
+            long pos = lowerBound(index, n, prefix);
+            if (pos < n && recordAt(index, pos).startsWith(prefix)) {
+                found = recordAt(index, pos);
+                if (pos + 1 < n && recordAt(index, pos + 1).startsWith(prefix)) {
+                    throw error("Ambiguous commit id %s.", prefix);
+                }
+            }
+        }
+        for (String id : readTail()) {
+            if (id.startsWith(prefix) && !id.equals(found)) {
+                if (found != null) {
+                    throw error("Ambiguous commit id %s.", prefix);
+                }
+                found = id;
+            }
+        }
+        return found;
+    }
+
+    /** Adds ID, a commit that has just been saved, to the index. */
+    public static void add(String id) {
+        if (!INDEX_FILE.exists()) {
+            rebuild(); // picks up ID as well, since the commit is saved before it is indexed
+            return;
+        }
+        List<String> tail = readTail();
+        if (tail.contains(id)) {
+            return;
+        }
+        if (tail.size() + 1 >= TAIL_LIMIT) {
+            tail.add(id);
+            merge(tail);
+            return;
+        }
+        try (RandomAccessFile out = new RandomAccessFile(TAIL_FILE, "rw")) {
+            // Drop a record cut short by a crash, which would put all later ones out of step
+            long end = out.length() / RECORD * RECORD;
+            out.setLength(end);
+            out.seek(end);
+            out.write((id + "\n").getBytes(StandardCharsets.US_ASCII));
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    /** Rewrites INDEX_FILE with the ids in ADDED merged in, and empties the tail. */
+    private static void merge(List<String> added) {
+        byte[] records = readContents(INDEX_FILE);
+        if (records.length % RECORD != 0) {
+            rebuild();
+            return;
+        }
+        Collections.sort(added);
+        int n = records.length / RECORD;
+        StringBuilder sb = new StringBuilder(records.length + added.size() * RECORD);
+        int i = 0;
+        String last = null;
+        for (String id : added) {
+            while (i < n && recordAt(records, i).compareTo(id) < 0) {
+                sb.append(recordAt(records, i)).append('\n');
+                i++;
+            }
+            if (!id.equals(last) && (i == n || !recordAt(records, i).equals(id))) {
+                sb.append(id).append('\n');
+            }
+            last = id;
+        }
+        sb.append(new String(records, i * RECORD, (n - i) * RECORD, StandardCharsets.US_ASCII));
+        writeAtomic(INDEX_FILE, sb.toString());
+        TAIL_FILE.delete();
+    }
+
+    /** Rewrites the index from the commits currently stored, loose or packed. */
+    public static void rebuild() {
+        StringBuilder sb = new StringBuilder();
+        for (String id : Commit.allIds()) { // already sorted
+            if (id.length() == UID_LENGTH) {
+                sb.append(id).append('\n');
+            }
+        }
+        writeAtomic(INDEX_FILE, sb.toString());
+        TAIL_FILE.delete();
+    }
+
+    /** Returns the ids in TAIL_FILE, up to the first record that is incomplete or damaged. */
+    private static List<String> readTail() {
+        List<String> ids = new ArrayList<>();
+        if (!TAIL_FILE.exists()) {
+            return ids;
+        }
+        byte[] records = readContents(TAIL_FILE);
+        for (int i = 0; (i + 1) * RECORD <= records.length; i++) {
+            if (records[(i + 1) * RECORD - 1] != '\n') {
+                break;
+            }
+            ids.add(recordAt(records, i));
+        }
+        return ids;
+    }
+
+    /** Returns the position of the first of the N records that is not less than KEY. */
+    private static long lowerBound(RandomAccessFile index, long n, String key) throws IOException {
+        long lo = 0;
+        long hi = n;
+        while (lo < hi) {
+            long mid = (lo + hi) >>> 1;
+            if (recordAt(index, mid).compareTo(key) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /** Returns the id stored in record number POS of RECORDS. */
+    private static String recordAt(byte[] records, int pos) {
+        return new String(records, pos * RECORD, UID_LENGTH, StandardCharsets.US_ASCII);
+    }
+
+    /** Returns the id stored in record number POS.
+     *  Throws an IOException if the record does not end in a newline, as in a damaged index. */
+    private static String recordAt(RandomAccessFile index, long pos) throws IOException {
+        byte[] buf = new byte[RECORD];
+        index.seek(pos * RECORD);
+        index.readFully(buf);
+        if (buf[UID_LENGTH] != '\n') {
+            throw new IOException("damaged commit index");
+        }
+        return new String(buf, 0, UID_LENGTH, StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,103 @@
+package gitlet;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static gitlet.Utils.*;
+
+/** Tests of Commit.readInOrder, which decodes commits ahead on several threads
+ *  but must hand them over in the order asked for.
+ *
+ *  @author flora
+ */
+public class CommitTest {
+    public static final File CWD = Repository.CWD;
+
+    /** Ids of the commits saved by setUp, in the order they were made. */
+    private final List<String> ids = new ArrayList<>();
+
+    /** Starts every test from a fresh repository with a few batches' worth of commits. */
+    @Before
+    public void setUp() throws IOException {
+        if (Repository.GITLET_DIR.exists()) {
+            cleanRepo(CWD);
+        }
+        Repository.init();
+        String tree = Tree.write(new TreeMap<>());
+        String parent = readContentsAsString(Repository.HEAD);
+        long time = System.currentTimeMillis();
+        ids.add(parent);
+        for (int i = 0; i < 600; i++) {
+            Commit commit = new Commit("commit " + i, List.of(parent), tree, new Date(time + i * 1000L));
+            commit.saveCommit();
+            parent = commit.getId();
+            ids.add(parent);
+        }
+    }
+
+    /** Returns the ids of the commits that readInOrder passes on for IDS, stopping after LIMIT. */
+    private static List<String> read(List<String> ids, int limit) {
+        List<String> seen = new ArrayList<>();
+        Commit.readInOrder(ids, commit -> {
+            seen.add(commit.getId());
+            return seen.size() < limit;
+        });
+        return seen;
+    }
+
+    /** Test that commits come in the order of the ids, whatever that order is. */
+    @Test
+    public void testOrder() {
+        Assert.assertEquals(ids, read(ids, Integer.MAX_VALUE));
+        List<String> reversed = new ArrayList<>(ids);
+        Collections.reverse(reversed);
+        Assert.assertEquals(reversed, read(reversed, Integer.MAX_VALUE));
+        List<String> shuffled = new ArrayList<>(ids);
+        Collections.shuffle(shuffled, new Random(23));
+        Assert.assertEquals(shuffled, read(shuffled, Integer.MAX_VALUE));
+        Assert.assertTrue(read(new ArrayList<>(), Integer.MAX_VALUE).isEmpty());
+    }
+
+    /** Test that commits are read whole, as getCommitFromId reads them. */
+    @Test
+    public void testContents() {
+        List<Commit> commits = new ArrayList<>();
+        Commit.readInOrder(ids, commits::add);
+        Assert.assertEquals(ids.size(), commits.size());
+        for (Commit commit : commits) {
+            Commit expected = Commit.getCommitFromId(commit.getId());
+            Assert.assertEquals(expected.getMessage(), commit.getMessage());
+            Assert.assertEquals(expected.getTimestamp(), commit.getTimestamp());
+            Assert.assertEquals(expected.getParentIds(), commit.getParentIds());
+        }
+    }
+
+    /** Test that ids of commits that are not stored are skipped. */
+    @Test
+    public void testMissing() {
+        List<String> withMissing = new ArrayList<>();
+        for (String id : ids) {
+            withMissing.add(id);
+            withMissing.add(sha1("missing", id));
+        }
+        Assert.assertEquals(ids, read(withMissing, Integer.MAX_VALUE));
+    }
+
+    /** Test that reading stops as soon as the action returns false. */
+    @Test
+    public void testStop() {
+        for (int limit : new int[]{1, 255, 256, 257, 300}) {
+            Assert.assertEquals(ids.subList(0, limit), read(ids, limit));
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+import static gitlet.Utils.*;
+
+/** A long-running gitlet process that serves commands for one repository over the Unix
+ *  domain socket .gitlet/daemon.sock, so that scripts running many commands pay for JVM
+ *  startup, class loading and JIT compilation once, and find the commit and tree caches,
+ *  the open packs and the index already in memory.
+ *  Main forwards its arguments to the daemon whenever the socket exists and answers,
+ *  and runs the command itself otherwise. The daemon runs one command at a time, taking
+ *  the repository lock like any other gitlet process, and reads HEAD, the branches and
+ *  the staging areas from disk for every command, so its output is the same as that of
+ *  a one-shot run, even with one-shot runs going on alongside.
+ *  A request is [argument count: 4 bytes] followed by each argument as UTF; the reply is
+ *  a sequence of frames [OUT or ERR: 1 byte][length: 4 bytes][bytes], ended by
+ *  [EXIT: 1 byte][exit code: 4 bytes].
+ *
+ *  @author flora
+ */
+public class Daemon {
+
+    /** The socket the daemon listens on. */
+    public static final File SOCKET_FILE = join(Repository.GITLET_DIR, "daemon.sock");
+
+    /** Frame types of the reply. */
+    private static final byte OUT = 'o';
+    private static final byte ERR = 'e';
+    private static final byte EXIT = 'x';
+
+    /* Server */
+
+    /** Serves commands until asked to stop with "daemon stop". */
+    public static void serve() {
+        if (!Repository.GITLET_DIR.exists()) {
+            throw error("Not in an initialized Gitlet directory.");
+        }
+        if (forward(new String[0]) >= 0) {
+            throw error("A gitlet daemon is already running.");
+        }
+        SOCKET_FILE.delete(); // left behind by a daemon that was killed
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            server.bind(UnixDomainSocketAddress.of(SOCKET_FILE.toPath()));
+            Runtime.getRuntime().addShutdownHook(new Thread(SOCKET_FILE::delete));
+            boolean running = true;
+            while (running) {
+                try (SocketChannel client = server.accept()) {
+                    running = handle(client);
+                } catch (IOException e) {
+                    // the client went away; carry on with the next one
+                }
+            }
+        } catch (IOException e) {
+            throw error("Cannot start the gitlet daemon: %s", e.getMessage());
+        } finally {
+            SOCKET_FILE.delete();
+        }
+    }
+
+    /** Runs the command requested by CLIENT with its output sent back to it.
+     *  Returns false if the daemon is to stop. */
+    private static boolean handle(SocketChannel client) throws IOException {
+        DataInputStream in = new DataInputStream(Channels.newInputStream(client));
+        String[] args;
+        try {
+            args = new String[in.readInt()];
+            for (int i = 0; i < args.length; i++) {
+                args[i] = in.readUTF();
+            }
+        } catch (EOFException e) {
+            return true; // only checking that the daemon is up
+        }
+        DataOutputStream reply = new DataOutputStream(Channels.newOutputStream(client));
+        if (args.length == 2 && args[0].equals("daemon") && args[1].equals("stop")) {
+            sendExit(reply, 0);
+            return false;
+        }
+
+        PrintStream stderr = System.err;
+        PrintStream out = new PrintStream(new BufferedOutputStream(new FrameStream(reply, OUT)),
+                false, StandardCharsets.UTF_8);
+        PrintStream err = new PrintStream(new BufferedOutputStream(new FrameStream(reply, ERR)),
+                true, StandardCharsets.UTF_8);
+        int exitCode = 0;
+        PrintStream stdout = setOutput(out);
+        System.setErr(err);
+        try {
+            // Cached objects never change, but the config and the packs may have since the last command
+            Repository.reloadConfig();
+            Commit.reloadConfig();
+            Tree.reloadConfig();
+            PackFile.reload();
+            Main.execute(args);
+        } catch (RuntimeException | Error e) {
+            // What a one-shot run would have died with
+            System.err.print("Exception in thread \"main\" ");
+            e.printStackTrace();
+            exitCode = 1;
+        } finally {
+            RepoLock.release();
+            out.flush();
+            err.flush();
+            setOutput(stdout);
+            System.setErr(stderr);
+        }
+        sendExit(reply, exitCode);
+        return true;
+    }
+
+    private static void sendExit(DataOutputStream reply, int exitCode) throws IOException {
+        synchronized (reply) {
+            reply.writeByte(EXIT);
+            reply.writeInt(exitCode);
+            reply.flush();
+        }
+    }
+
+    /** Sends what is written to it to the client as frames of one TYPE. */
+    private static class FrameStream extends OutputStream {
+        private final DataOutputStream reply;
+        private final byte type;
+
+        FrameStream(DataOutputStream reply, byte type) {
+            this.reply = reply;
+            this.type = type;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            synchronized (reply) {
+                reply.writeByte(type);
+                reply.writeInt(len);
+                reply.write(b, off, len);
+                reply.flush();
+            }
+        }
+    }
+
+    /* Client */
+
+    /** Has the daemon serving this repository, if any, run the command given by ARGS,
+     *  copying its output to System.out and System.err.
+     *  Returns the exit code of the command, or -1 if there is no daemon to run it. */
+    public static int forward(String[] args) {
+        if (!SOCKET_FILE.exists()) {
+            return -1;
+        }
+        SocketChannel channel;
+        try {
+            channel = SocketChannel.open(UnixDomainSocketAddress.of(SOCKET_FILE.toPath()));
+        } catch (IOException e) {
+            return -1; // a stale socket: nobody is listening
+        }
+        try (channel) {
+            if (args.length == 0) {
+                return 0;
+            }
+            DataOutputStream request = new DataOutputStream(Channels.newOutputStream(channel));
+            request.writeInt(args.length);
+            for (String arg : args) {
+                request.writeUTF(arg);
+            }
+            request.flush();
+            DataInputStream reply = new DataInputStream(Channels.newInputStream(channel));
+            while (true) {
+                byte type = reply.readByte();
+                if (type == EXIT) {
+                    int exitCode = reply.readInt();
+                    System.out.flush();
+                    return exitCode;
+                }
+                byte[] bytes = new byte[reply.readInt()];
+                reply.readFully(bytes);
+                (type == OUT ? System.out : System.err).write(bytes);
+            }
+        } catch (IOException e) {
+            // The command may have run in part already, so it is not run again here
+            message("Lost the connection to the gitlet daemon.");
+            return 1;
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/** Binary deltas between two versions of a file's content.
+ *  A delta rebuilds a target from a base and is a sequence of instructions:
+ *      [base length][target length]   # varints, for validation
+ *      COPY   [offset][length]        # copy a run of bytes from the base
+ *      INSERT [length][bytes...]      # literal bytes not found in the base
+ *  Matches are found by hashing BLOCK-byte blocks of the base and sliding a
+ *  rolling hash of the same width over the target.
+ *
+ *  @author flora
+ */
+class Delta {
+
+    private static final int COPY = 1;
+    private static final int INSERT = 0;
+    /** Width of the blocks used to find matches. Shorter matches are inserted. */
+    private static final int BLOCK = 16;
+    /** Multiplier of the rolling hash. */
+    private static final int PRIME = 31;
+    /** Longest header of a delta: two varints of at most 5 bytes. */
+    static final int MAX_HEADER = 10;
+
+    /** Returns a delta that turns BASE into TARGET. */
+    static byte[] create(byte[] base, byte[] target) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeVarint(out, base.length);
+        writeVarint(out, target.length);
+        if (base.length < BLOCK || target.length < BLOCK) {
+            insert(out, target, 0, target.length);
+            return out.toByteArray();
+        }
+
+        // Index aligned blocks of the base by their hash (first occurrence wins)
+        Map<Integer, Integer> blocks = new HashMap<>();
+        for (int i = 0; i + BLOCK <= base.length; i += BLOCK) {
+            blocks.putIfAbsent(hash(base, i), i);
+        }
+        int power = 1; // PRIME^(BLOCK-1), to drop the leading byte from the rolling hash
+        for (int i = 1; i < BLOCK; i++) {
+            power *= PRIME;
+        }
+
+        int pending = 0; // start of bytes not yet emitted
+        int pos = 0;
+        int h = hash(target, 0);
+        while (pos + BLOCK <= target.length) {
+            Integer at = blocks.get(h);
+            if (at != null && equalRange(base, at, target, pos, BLOCK)) {
+                // Extend the match backwards into the pending insert, then forwards
+                int bStart = at;
+                int tStart = pos;
+                while (bStart > 0 && tStart > pending && base[bStart - 1] == target[tStart - 1]) {
+                    bStart--;
+                    tStart--;
+                }
+                int len = pos - tStart + BLOCK;
+                while (bStart + len < base.length && tStart + len < target.length
+                        && base[bStart + len] == target[tStart + len]) {
+                    len++;
+                }
+                insert(out, target, pending, tStart - pending);
+                out.write(COPY);
+                writeVarint(out, bStart);
+                writeVarint(out, len);
+                pos = tStart + len;
+                pending = pos;
+                if (pos + BLOCK <= target.length) {
+                    h = hash(target, pos);
+                }
+                continue;
+            }
+            if (pos + BLOCK < target.length) {
+                h = (h - target[pos] * power) * PRIME + target[pos + BLOCK];
+            }
+            pos++;
+        }
+        insert(out, target, pending, target.length - pending);
+        return out.toByteArray();
+    }
+
+    /** Returns the length of the target of DELTA, of which only the header is needed:
+     *  HEAD may be just the first MAX_HEADER bytes of the delta. */
+    static int targetLength(byte[] head) {
+        int[] pos = {0};
+        readVarint(head, pos);
+        return readVarint(head, pos);
+    }
+
+    /** Returns the target rebuilt by applying DELTA to BASE. */
+    static byte[] apply(byte[] base, byte[] delta) {
+        int[] pos = {0};
+        int baseLength = readVarint(delta, pos);
+        int targetLength = readVarint(delta, pos);
+        if (baseLength != base.length) {
+            throw new IllegalArgumentException("delta does not match its base");
+        }
+        byte[] target = new byte[targetLength];
+        int t = 0;
+        while (pos[0] < delta.length) {
+            int op = delta[pos[0]++];
+            if (op == COPY) {
+                int offset = readVarint(delta, pos);
+                int len = readVarint(delta, pos);
+                System.arraycopy(base, offset, target, t, len);
+                t += len;
+            } else if (op == INSERT) {
+                int len = readVarint(delta, pos);
+                System.arraycopy(delta, pos[0], target, t, len);
+                pos[0] += len;
+                t += len;
+            } else {
+                throw new IllegalArgumentException("corrupted delta");
+            }
+        }
+        if (t != targetLength) {
+            throw new IllegalArgumentException("corrupted delta");
+        }
+        return target;
+    }
+
+    /** Writes an INSERT of LEN bytes of DATA from START, if there are any. */
+    private static void insert(ByteArrayOutputStream out, byte[] data, int start, int len) {
+        if (len > 0) {
+            out.write(INSERT);
+            writeVarint(out, len);
+            out.write(data, start, len);
+        }
+    }
+
+    /** Returns the hash of the BLOCK bytes of DATA from START. */
+    private static int hash(byte[] data, int start) {
+        int h = 0;
+        for (int i = start; i < start + BLOCK; i++) {
+            h = h * PRIME + data[i];
+        }
+        return h;
+    }
+
+    private static boolean equalRange(byte[] a, int aStart, byte[] b, int bStart, int len) {
+        for (int i = 0; i < len; i++) {
+            if (a[aStart + i] != b[bStart + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Writes the non-negative N in 7-bit groups, low group first. */
+    private static void writeVarint(ByteArrayOutputStream out, int n) {
+        while ((n & ~0x7f) != 0) {
+            out.write((n & 0x7f) | 0x80);
+            n >>>= 7;
+        }
+        out.write(n);
+    }
+
+    /** Reads a varint from DATA at POS[0], advancing POS[0] past it. */
+    private static int readVarint(byte[] data, int[] pos) {
+        int n = 0;
+        int shift = 0;
+        while (true) {
+            int b = data[pos[0]++] & 0xff;
+            n |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return n;
+            }
+            shift += 7;
+        }
+    }
+}
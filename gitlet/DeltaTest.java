@@ -0,0 +1,129 @@
+package gitlet;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/** Tests that Delta.apply rebuilds the target of every delta made by Delta.create.
+ *
+ *  @author flora
+ */
+public class DeltaTest {
+
+    /** Offsets around the boundaries of the blocks that Delta matches on (16 bytes). */
+    private static final int[] OFFSETS = {0, 1, 15, 16, 17, 31, 32, 33, 1000, 4095, 4096, 4097};
+    /** Lengths of the inserted, deleted and replaced runs. */
+    private static final int[] LENGTHS = {1, 2, 15, 16, 17, 100, 1000};
+
+    private final Random random = new Random(6);
+
+    /** Returns LENGTH random bytes from an alphabet of SYMBOLS, so that small alphabets
+     *  give repetitive content, like text. */
+    private byte[] randomBytes(int length, int symbols) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) ('a' + random.nextInt(symbols));
+        }
+        return bytes;
+    }
+
+    /** Returns BASE with the bytes from FROM to TO replaced by INSERTED. */
+    private static byte[] splice(byte[] base, int from, int to, byte[] inserted) {
+        byte[] res = new byte[base.length - (to - from) + inserted.length];
+        System.arraycopy(base, 0, res, 0, from);
+        System.arraycopy(inserted, 0, res, from, inserted.length);
+        System.arraycopy(base, to, res, from + inserted.length, base.length - to);
+        return res;
+    }
+
+    /** Asserts that the delta from BASE to TARGET rebuilds TARGET, and returns its size. */
+    private static int assertRoundTrip(byte[] base, byte[] target) {
+        byte[] delta = Delta.create(base, target);
+        Assert.assertArrayEquals("delta of " + base.length + " to " + target.length + " bytes",
+                target, Delta.apply(base, delta));
+        return delta.length;
+    }
+
+    /** Test inserts of runs of several lengths at and around block boundaries. */
+    @Test
+    public void testInserts() {
+        for (int symbols : new int[]{4, 256}) {
+            byte[] base = randomBytes(8192, symbols);
+            for (int offset : OFFSETS) {
+                for (int length : LENGTHS) {
+                    assertRoundTrip(base, splice(base, offset, offset, randomBytes(length, symbols)));
+                }
+            }
+            assertRoundTrip(base, splice(base, base.length, base.length, randomBytes(100, symbols)));
+        }
+    }
+
+    /** Test deletes of runs of several lengths at and around block boundaries. */
+    @Test
+    public void testDeletes() {
+        for (int symbols : new int[]{4, 256}) {
+            byte[] base = randomBytes(8192, symbols);
+            for (int offset : OFFSETS) {
+                for (int length : LENGTHS) {
+                    assertRoundTrip(base, splice(base, offset, offset + length, new byte[0]));
+                }
+            }
+            assertRoundTrip(base, Arrays.copyOf(base, base.length - 1));
+        }
+    }
+
+    /** Test runs replaced in place, at and around block boundaries, and several edits at once. */
+    @Test
+    public void testEdits() {
+        for (int symbols : new int[]{4, 256}) {
+            byte[] base = randomBytes(8192, symbols);
+            for (int offset : OFFSETS) {
+                for (int length : LENGTHS) {
+                    assertRoundTrip(base, splice(base, offset, offset + length, randomBytes(length, symbols)));
+                }
+            }
+            byte[] target = base.clone();
+            for (int i = 0; i < 50; i++) {
+                int offset = random.nextInt(target.length);
+                target = splice(target, offset, Math.min(target.length, offset + random.nextInt(40)),
+                        randomBytes(random.nextInt(40), symbols));
+            }
+            assertRoundTrip(base, target);
+        }
+    }
+
+    /** Test empty, short and repetitive contents, and unrelated ones. */
+    @Test
+    public void testEdgeCases() {
+        byte[] base = randomBytes(1000, 256);
+        assertRoundTrip(new byte[0], new byte[0]);
+        assertRoundTrip(new byte[0], base);
+        assertRoundTrip(base, new byte[0]);
+        assertRoundTrip(base, base);
+        assertRoundTrip(randomBytes(15, 256), base);
+        assertRoundTrip(base, randomBytes(15, 256));
+        assertRoundTrip(Arrays.copyOf(base, 16), Arrays.copyOf(base, 16));
+        assertRoundTrip(new byte[5000], new byte[5001]);
+        assertRoundTrip(new byte[5000], splice(new byte[5000], 2500, 2500, base));
+        assertRoundTrip(base, randomBytes(1000, 256));
+    }
+
+    /** Test that a small change to a large file gives a small delta. */
+    @Test
+    public void testSmallEditGivesSmallDelta() {
+        byte[] base = randomBytes(100000, 256);
+        Assert.assertTrue(assertRoundTrip(base, base) < 32);
+        Assert.assertTrue(assertRoundTrip(base, splice(base, 50001, 50001, randomBytes(1, 256))) < 32);
+        Assert.assertTrue(assertRoundTrip(base, splice(base, 50000, 50016, new byte[0])) < 32);
+    }
+
+    /** Test that a delta is not applied to the wrong base. */
+    @Test(expected = IllegalArgumentException.class)
+    public void testWrongBase() {
+        byte[] base = randomBytes(1000, 256);
+        byte[] delta = Delta.create(base, splice(base, 10, 20, new byte[0]));
+        Delta.apply(Arrays.copyOf(base, 999), delta);
+    }
+}
@@ -0,0 +1,240 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+
+import static gitlet.Utils.*;
+
+/** A cache of the stat data of working files, like git's index.
+ *  For each path it records the size, modification time and inode the file had
+ *  when its blob id was last computed or written, so that a file whose stat data
+ *  is unchanged can be assumed to still hold that blob and need not be read again.
+ *  The index file is laid out as
+ *      INDEX_MAGIC, a count, then per path (sorted):
+ *      [path: UTF][size: 8 bytes][mtime in ns: 8 bytes][inode: 8 bytes][blob id: UTF]
+ *  An entry whose mtime is not older than the index file itself is not trusted,
+ *  since the file may have changed again within the same clock tick ("racily clean").
+ *
+ *  @author flora
+ */
+public class Index {
+
+    /** The index file in .gitlet/. */
+    public static final File INDEX_FILE = join(Repository.GITLET_DIR, "index");
+
+    private static final byte[] INDEX_MAGIC = {'G', 'I', 'N', 'X'};
+
+    /** Stat data and blob id of one path. */
+    private static class Entry {
+        final long size;
+        final long mtime;
+        final long inode;
+        final String blobId;
+
+        Entry(long size, long mtime, long inode, String blobId) {
+            this.size = size;
+            this.mtime = mtime;
+            this.inode = inode;
+            this.blobId = blobId;
+        }
+
+        boolean matches(Entry other) {
+            return size == other.size && mtime == other.mtime && inode == other.inode;
+        }
+    }
+
+    /** Entries by plain name. Concurrent, so that many files can be checked at once. */
+    private final ConcurrentSkipListMap<String, Entry> entries = new ConcurrentSkipListMap<>();
+    /** Modification time (ns) of the index file when it was read. */
+    private long indexTime;
+    /** True if the entries changed since the index was read. */
+    private volatile boolean dirty;
+
+    /** The index last read or saved by this process, and the stamp INDEX_FILE had then.
+     *  The daemon thus reads the index file only when another process has rewritten it. */
+    private static Index current;
+    private static Object currentStamp;
+
+    private Index() {
+    }
+
+    /** Reads the index, or returns an empty one if there is none (or it is unreadable). */
+    public static synchronized Index load() {
+        Object stamp = stamp();
+        if (current != null && !current.dirty && stamp != null && stamp.equals(currentStamp)) {
+            return current;
+        }
+        Index index = new Index();
+        current = index;
+        currentStamp = stamp;
+        if (!INDEX_FILE.exists()) {
+            return index;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(INDEX_FILE)))) {
+            byte[] magic = new byte[INDEX_MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, INDEX_MAGIC)) {
+                return index;
+            }
+            int n = in.readInt();
+            for (int i = 0; i < n; i++) {
+                String name = in.readUTF();
+                index.entries.put(name, new Entry(in.readLong(), in.readLong(), in.readLong(), in.readUTF()));
+            }
+            index.indexTime = Files.getLastModifiedTime(INDEX_FILE.toPath()).to(TimeUnit.NANOSECONDS);
+        } catch (IOException e) {
+            index.entries.clear(); // a damaged index is only a cache; start over
+        }
+        return index;
+    }
+
+    /** Returns the blob id recorded for the working file PLAINNAME if the file's
+     *  stat data is unchanged since, or null if the file has to be read to know it. */
+    public String cachedId(String plainName) {
+        Entry entry = entries.get(plainName);
+        if (entry == null || entry.mtime >= indexTime) {
+            return null;
+        }
+        Entry current = stat(join(Repository.CWD, plainName));
+        return current != null && entry.matches(current) ? entry.blobId : null;
+    }
+
+    /** Returns the blob id of the working file PLAINNAME, from the index if its stat data
+     *  is unchanged, or else by hashing the file (and recording the result).
+     *  Returns null if there is no such file. */
+    public String blobIdOf(String plainName) {
+        String id = cachedId(plainName);
+        if (id != null) {
+            return id;
+        }
+        File file = join(Repository.CWD, plainName);
+        if (!file.isFile()) {
+            return null;
+        }
+        id = Blob.hash(file);
+        record(plainName, id);
+        return id;
+    }
+
+    /** Returns true if the working file PLAINNAME is known to hold blob BLOBID without reading it. */
+    public boolean holds(String plainName, String blobId) {
+        return blobId != null && blobId.equals(cachedId(plainName));
+    }
+
+    /** Records that the working file PLAINNAME, as it is now, holds blob BLOBID. */
+    public void record(String plainName, String blobId) {
+        Entry entry = stat(join(Repository.CWD, plainName));
+        if (entry == null) {
+            remove(plainName);
+            return;
+        }
+        entries.put(plainName, new Entry(entry.size, entry.mtime, entry.inode, blobId));
+        dirty = true;
+    }
+
+    /** Forgets PLAINNAME, e.g. after the working file is deleted. */
+    public void remove(String plainName) {
+        if (entries.remove(plainName) != null) {
+            dirty = true;
+        }
+    }
+
+    /** Writes the index back if it changed, to a temporary file that then replaces INDEX_FILE.
+     *  The temporary file is unique, since read-only commands such as status, which may run
+     *  side by side under a shared lock, also refresh the index. */
+    public synchronized void save() {
+        if (!dirty || !Repository.GITLET_DIR.exists()) {
+            return;
+        }
+        File tmp;
+        try {
+            tmp = File.createTempFile(INDEX_FILE.getName() + ".", ".tmp", Repository.GITLET_DIR);
+        } catch (IOException e) {
+            return;
+        }
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.write(INDEX_MAGIC);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                Entry entry = e.getValue();
+                out.writeUTF(e.getKey());
+                out.writeLong(entry.size);
+                out.writeLong(entry.mtime);
+                out.writeLong(entry.inode);
+                out.writeUTF(entry.blobId);
+            }
+        } catch (IOException e) {
+            tmp.delete();
+            return; // the index is only a cache
+        }
+        try {
+            Files.move(tmp.toPath(), INDEX_FILE.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            // Now as good as freshly read: keep it for the next load
+            indexTime = Files.getLastModifiedTime(INDEX_FILE.toPath()).to(TimeUnit.NANOSECONDS);
+            synchronized (Index.class) {
+                current = this;
+                currentStamp = stamp();
+            }
+        } catch (IOException e) {
+            tmp.delete();
+        }
+        dirty = false;
+    }
+
+    /** Returns what identifies the current version of INDEX_FILE: its file key (inode)
+     *  and modification time, or null if there is no index file or no file key.
+     *  Every save replaces the file, so a rewritten index has a new file key. */
+    private static Object stamp() {
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(INDEX_FILE.toPath(), BasicFileAttributes.class);
+            Object key = attrs.fileKey();
+            return key == null ? null : List.of(key, attrs.lastModifiedTime(), attrs.size());
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /** Returns the current stat data of FILE (with no blob id), or null if it is not a plain file. */
+    private static Entry stat(File file) {
+        Path path = file.toPath();
+        try {
+            Map<String, Object> attrs = Files.readAttributes(path, "unix:isRegularFile,size,lastModifiedTime,ino");
+            if (!(Boolean) attrs.get("isRegularFile")) {
+                return null;
+            }
+            return new Entry((Long) attrs.get("size"),
+                    ((FileTime) attrs.get("lastModifiedTime")).to(TimeUnit.NANOSECONDS),
+                    (Long) attrs.get("ino"), null);
+        } catch (UnsupportedOperationException | IllegalArgumentException e) {
+            // No unix view on this platform: fall back to size and mtime
+            try {
+                BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+                if (!attrs.isRegularFile()) {
+                    return null;
+                }
+                return new Entry(attrs.size(), attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS), 0, null);
+            } catch (IOException ex) {
+                return null;
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package gitlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static gitlet.Utils.*;
+
+/** A write-ahead journal that makes a group of updates to files in .gitlet
+ *  (HEAD, branch heads, curBranch, the staging areas) happen all together or not at all.
+ *  Updates are collected with write() and applied by commit(), which first saves them all
+ *  to JOURNAL_FILE, then writes each target file, then deletes the journal.
+ *  If a command is killed in between, recover() finds the journal on the next start:
+ *  a complete journal is replayed (the writes are idempotent), anything else is dropped,
+ *  in which case none of the target files had been touched yet.
+ *  The journal file is laid out as
+ *      JOURNAL_MAGIC, a count, then per update:
+ *      [path relative to .gitlet: UTF][length: 4 bytes][contents]
+ *      and finally the sha-1 of everything before it (40 hex characters).
+ *
+ *  @author flora
+ */
+public class Journal {
+
+    /** The journal file in .gitlet/. */
+    public static final File JOURNAL_FILE = join(Repository.GITLET_DIR, "journal");
+
+    private static final byte[] JOURNAL_MAGIC = {'G', 'J', 'N', 'L'};
+    /** Length of the trailing checksum. */
+    private static final int CHECKSUM = UID_LENGTH;
+
+    /** The pending updates: new contents by target file, in order. */
+    private final Map<File, byte[]> writes = new LinkedHashMap<>();
+
+    /** Records that FILE is to be overwritten with the bytes in CONTENTS
+     *  (Strings or byte arrays, as in writeContents) when the journal is committed. */
+    public void write(File file, Object... contents) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for (Object obj : contents) {
+            byte[] b = obj instanceof byte[] ? (byte[]) obj : ((String) obj).getBytes(StandardCharsets.UTF_8);
+            bytes.write(b, 0, b.length);
+        }
+        writes.put(file, bytes.toByteArray());
+    }
+
+    /** Applies all recorded updates as one transaction. */
+    public void commit() {
+        if (writes.isEmpty()) {
+            return;
+        }
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(buf)) {
+            out.write(JOURNAL_MAGIC);
+            out.writeInt(writes.size());
+            for (Map.Entry<File, byte[]> e : writes.entrySet()) {
+                out.writeUTF(Repository.GITLET_DIR.toPath().relativize(e.getKey().toPath()).toString());
+                out.writeInt(e.getValue().length);
+                out.write(e.getValue());
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        byte[] body = buf.toByteArray();
+        writeAtomic(JOURNAL_FILE, body, checksum(body)); // from here on, the transaction will happen
+        apply(writes);
+        JOURNAL_FILE.delete();
+        writes.clear();
+    }
+
+    /** Finishes or drops a transaction interrupted by a crash. Called before every command. */
+    public static void recover() {
+        // Journals that never made it to JOURNAL_FILE; only commands that write make them
+        File[] unfinished = Repository.GITLET_DIR.listFiles(
+                (dir, name) -> isTempFile(name) && name.startsWith("." + JOURNAL_FILE.getName() + "."));
+        if (unfinished != null) {
+            for (File f : unfinished) {
+                f.delete();
+            }
+        }
+        if (!JOURNAL_FILE.exists()) {
+            return;
+        }
+        Map<File, byte[]> pending = read(readContents(JOURNAL_FILE));
+        if (pending != null) {
+            apply(pending);
+        }
+        JOURNAL_FILE.delete();
+    }
+
+    /** Writes each of the WRITES to its file. */
+    private static void apply(Map<File, byte[]> writes) {
+        for (Map.Entry<File, byte[]> e : writes.entrySet()) {
+            writeAtomic(e.getKey(), e.getValue());
+        }
+    }
+
+    /** Returns the updates in the journal STORED, or null if it is not a complete journal. */
+    private static Map<File, byte[]> read(byte[] stored) {
+        if (stored.length < JOURNAL_MAGIC.length + CHECKSUM || !startsWith(stored, JOURNAL_MAGIC)) {
+            return null;
+        }
+        byte[] body = Arrays.copyOf(stored, stored.length - CHECKSUM);
+        if (!Arrays.equals(checksum(body), Arrays.copyOfRange(stored, body.length, stored.length))) {
+            return null;
+        }
+        Map<File, byte[]> res = new LinkedHashMap<>();
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(body))) {
+            in.skipBytes(JOURNAL_MAGIC.length);
+            int n = in.readInt();
+            for (int i = 0; i < n; i++) {
+                File file = join(Repository.GITLET_DIR, in.readUTF());
+                byte[] contents = new byte[in.readInt()];
+                in.readFully(contents);
+                res.put(file, contents);
+            }
+        } catch (IOException e) {
+            return null;
+        }
+        return res;
+    }
+
+    /** Returns the sha-1 of BODY, as hex characters. */
+    private static byte[] checksum(byte[] body) {
+        return sha1(body).getBytes(StandardCharsets.US_ASCII);
+    }
+}
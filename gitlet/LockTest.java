@@ -0,0 +1,105 @@
+package gitlet;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static gitlet.Utils.*;
+
+/** Stress test of the repository lock: many gitlet processes adding and committing
+ *  at once, next to processes that only read, must leave HEAD, the branch and the
+ *  staging areas consistent, with every file committed.
+ *
+ *  @author flora
+ */
+public class LockTest {
+    public static final File CWD = Repository.CWD;
+
+    /** Number of processes that add and commit, one after another, at the same time. */
+    private static final int WRITERS = 6;
+    /** Number of add and commit rounds of each writer. */
+    private static final int ROUNDS = 3;
+    /** Number of processes that run status and log at the same time as the writers. */
+    private static final int READERS = 3;
+
+    /** Starts every test from a fresh repository. */
+    @Before
+    public void setUp() throws IOException {
+        if (Repository.GITLET_DIR.exists()) {
+            cleanRepo(CWD);
+        }
+        Repository.init();
+    }
+
+    /** Runs gitlet with ARGS in another process and returns its output.
+     *  Fails if the process does not exit cleanly or reports an exception. */
+    private static String gitlet(String... args) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>(List.of("java", "-cp", System.getProperty("java.class.path"),
+                "gitlet.Main"));
+        command.addAll(List.of(args));
+        Process process = new ProcessBuilder(command).directory(CWD).redirectErrorStream(true).start();
+        String output = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+        Assert.assertTrue(String.join(" ", args) + " timed out", process.waitFor(120, TimeUnit.SECONDS));
+        Assert.assertEquals(String.join(" ", args) + ": " + output, 0, process.exitValue());
+        Assert.assertFalse(String.join(" ", args) + ": " + output, output.contains("Exception"));
+        return output;
+    }
+
+    /** Test concurrent writers and readers: each writer stages and commits a file of its own
+     *  per round. A commit may take in a file that another writer staged, and leave that
+     *  writer with nothing to commit, but no file may be lost. */
+    @Test
+    public void testConcurrentCommits() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(WRITERS + READERS);
+        List<Future<?>> done = new ArrayList<>();
+        for (int w = 0; w < WRITERS; w++) {
+            int writer = w;
+            done.add(pool.submit(() -> {
+                for (int round = 0; round < ROUNDS; round++) {
+                    String name = "w" + writer + "r" + round + ".txt";
+                    writeContents(join(CWD, name), name + "\n");
+                    gitlet("add", name);
+                    gitlet("commit", "writer " + writer + " round " + round);
+                }
+                return null;
+            }));
+        }
+        for (int r = 0; r < READERS; r++) {
+            done.add(pool.submit(() -> {
+                for (int round = 0; round < ROUNDS; round++) {
+                    gitlet("status");
+                    gitlet("log");
+                }
+                return null;
+            }));
+        }
+        pool.shutdown();
+        for (Future<?> f : done) {
+            f.get(); // rethrows the failure of a process
+        }
+
+        String head = readContentsAsString(Repository.HEAD);
+        Assert.assertEquals(head, readContentsAsString(Repository.Master));
+        Commit commit = Commit.getCommitFromId(head);
+        for (int w = 0; w < WRITERS; w++) {
+            for (int round = 0; round < ROUNDS; round++) {
+                String name = "w" + w + "r" + round + ".txt";
+                Assert.assertEquals(name, sha1((name + "\n").getBytes(StandardCharsets.UTF_8)),
+                        commit.getBlobId(name));
+            }
+        }
+        Assert.assertEquals(0, readObject(Repository.ADD_FILE, StagingArea.class).size());
+        Assert.assertEquals(0, readObject(Repository.RM_FILE, StagingArea.class).size());
+        Assert.assertFalse(gitlet("status").contains(".txt"));
+    }
+}
@@ -1,6 +1,12 @@
 package gitlet;
 
 import java.io.IOException;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.Date;
 
 import static gitlet.Utils.*;
 import static gitlet.Repository.*;
@@ -16,9 +22,113 @@ public class Main {
     public static void main(String[] args) {
         if (args.length == 0) {
             message("Please enter a command.");
+            flushOutput();
             System.exit(0);
         }
 
+        if (Boolean.getBoolean("gitlet.stats")) {
+            // java -Dgitlet.stats=true gitlet.Main ... reports cache use on exit, for sizing core.commitCache,
+            // and the time spent waiting for other gitlet processes
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                System.err.printf("commit cache: %d hits, %d misses, %d cached%n",
+                        Commit.cacheHits(), Commit.cacheMisses(), Commit.cacheSize());
+                System.err.printf("lock wait: %.1f ms%n", RepoLock.waitNanos() / 1e6);
+            }));
+        }
+
+        if (!(args.length == 1 && args[0].equals("daemon"))) {
+            // Let a daemon serving this repository run the command, if there is one
+            int exitCode = Daemon.forward(args);
+            if (exitCode >= 0) {
+                flushOutput();
+                System.exit(exitCode);
+            }
+        }
+        try {
+            execute(args);
+        } finally {
+            flushOutput();
+        }
+    }
+
+    /** Runs the command given by ARGS, holding the repository lock, and prints the message
+     *  of the GitletException it fails with, if any. Called once per process, or by the
+     *  daemon once per request. */
+    static void execute(String[] args) {
+        try {
+            if (GITLET_DIR.exists() && !args[0].equals("init") && !args[0].equals("daemon")) {
+                boolean readOnly = isReadOnly(args);
+                RepoLock.acquire(readOnly);
+                if (readOnly && Journal.JOURNAL_FILE.exists()) {
+                    RepoLock.acquire(false); // recovering writes, so it must not run alongside readers
+                }
+                Journal.recover(); // finish or drop an update interrupted by a crash
+            }
+            run(args);
+        } catch (GitletException e) {
+            if (e.getMessage() != null) {
+                message(e.getMessage());
+            }
+        }
+    }
+
+    /** Returns true if the command given by ARGS only reads the repository,
+     *  so that it can share the repository lock with other readers. */
+    private static boolean isReadOnly(String[] args) {
+        switch (args[0]) {
+            case "log":
+            case "global-log":
+            case "find":
+            case "reflog":
+            case "status":
+                return true;
+            case "config":
+                return args.length == 2;
+            default:
+                return false;
+        }
+    }
+
+    /** Runs log with the options in ARGS: at most "-n" commits, after skipping the
+     *  first "--skip" ones, and none older than the "--since" date
+     *  (yyyy-MM-dd, or yyyy-MM-ddTHH:mm[:ss], in local time). */
+    private static void runLog(String[] args) {
+        int maxCount = Integer.MAX_VALUE;
+        int skip = 0;
+        Date since = null;
+        try {
+            for (int i = 1; i < args.length; i += 2) {
+                if (i + 1 == args.length) {
+                    throw error("Incorrect operands.");
+                }
+                String value = args[i + 1];
+                switch (args[i]) {
+                    case "-n":
+                        maxCount = Integer.parseInt(value);
+                        break;
+                    case "--skip":
+                        skip = Integer.parseInt(value);
+                        break;
+                    case "--since":
+                        LocalDateTime time = value.contains("T")
+                                ? LocalDateTime.parse(value) : LocalDate.parse(value).atStartOfDay();
+                        since = Date.from(time.atZone(ZoneId.systemDefault()).toInstant());
+                        break;
+                    default:
+                        throw error("Incorrect operands.");
+                }
+            }
+        } catch (NumberFormatException | DateTimeParseException e) {
+            throw error("Incorrect operands.");
+        }
+        if (maxCount < 0 || skip < 0) {
+            throw error("Incorrect operands.");
+        }
+        log(maxCount, skip, since);
+    }
+
+    /** Runs the command given by ARGS. */
+    private static void run(String[] args) {
         String firstArg = args[0];
         switch(firstArg) {
             /* Usage: java gitlet.Main init */
@@ -29,42 +139,54 @@ public class Main {
                     throw new RuntimeException(e);
                 }
                 break;
-            /* Usage: java gitlet.Main add [file name] */
+            /* Usage: java gitlet.Main add [file name] [file name] ... */
             case "add":
                 if (args.length < 2) {
-                    System.exit(0);
+                    throw new GitletException();
                 }
-                add(args[1]);
+                add(Arrays.copyOfRange(args, 1, args.length));
                 break;
             /* Usage: java gitlet.Main commit [message] */
             case "commit":
                 if (args.length < 2) {
-                    message("Please enter a commit message");
-                    System.exit(0);
+                    throw error("Please enter a commit message");
                 }
                 commit(args[1]);
                 break;
             /* Usage: java gitlet.Main rm [file name] */
             case "rm":
                 if (args.length < 2) {
-                    System.exit(0);
+                    throw new GitletException();
                 }
                 rm(args[1]);
                 break;
-            /* Usage: java gitlet.Main log */
+            /* Usage: java gitlet.Main log [-n count] [--skip count] [--since date] */
             case "log":
-                log();
+                runLog(args);
                 break;
             /* Usage: java gitlet.Main log */
             case "global-log":
                 globalLog();
                 break;
-            /* Usage: java gitlet.Main find [commit message] */
+            /* Usage: java gitlet.Main find [--contains | --regex] [commit message] */
             case "find":
                 if (args.length < 2) {
-                    System.exit(0);
+                    throw new GitletException();
+                }
+                if (args.length == 3 && args[1].equals("--contains")) {
+                    findContaining(args[2]);
+                } else if (args.length == 3 && args[1].equals("--regex")) {
+                    findMatching(args[2]);
+                } else {
+                    find(args[1]);
                 }
-                find(args[1]);
+                break;
+            /* Usage: java gitlet.Main reflog ([branch name]) */
+            case "reflog":
+                if (args.length > 2) {
+                    throw new GitletException();
+                }
+                reflog(args.length == 2 ? args[1] : null);
                 break;
             /* Usage: java gitlet.Main status */
             case "status":
@@ -77,7 +199,7 @@ public class Main {
             case "checkout":
                 int n = args.length;
                 if (n < 2) {
-                    System.exit(0);
+                    throw new GitletException();
                 }
                 if (n == 2) {
                     try {
@@ -94,7 +216,7 @@ public class Main {
             /* Usage: java gitlet.Main branch [branch name] */
             case "branch":
                 if (args.length != 2) {
-                    System.exit(0);
+                    throw new GitletException();
                 }
                 try {
                     branch(args[1]);
@@ -105,14 +227,14 @@ public class Main {
             /* Usage: java gitlet.Main rm-branch [branch name] */
             case "rm-branch":
                 if (args.length != 2) {
-                    System.exit(0);
+                    throw new GitletException();
                 }
                 rmBranch(args[1]);
                 break;
             /* Usage: java gitlet.Main reset [commit id] */
             case "reset":
                 if (args.length != 2) {
-                    System.exit(0);
+                    throw new GitletException();
                 }
                 try {
                     reset(args[1]);
@@ -123,14 +245,34 @@ public class Main {
             /* Usage: java gitlet.Main merge [branch name] */
             case "merge":
                 if (args.length != 2) {
-                    System.exit(0);
+                    throw new GitletException();
                 }
                 merge(args[1]);
                 break;
-            default:
-                message("No command with that name exists.");
-                System.exit(0);
+            /* Usage: java gitlet.Main gc */
+            case "gc":
+                gc();
+                break;
+            /* Usage: java gitlet.Main config [key] ([value]) */
+            case "config":
+                if (args.length != 2 && args.length != 3) {
+                    throw new GitletException();
+                }
+                config(args[1], args.length == 3 ? args[2] : null);
+                break;
+            /* Usage: java gitlet.Main daemon
+             *        java gitlet.Main daemon stop (handled by the running daemon) */
+            case "daemon":
+                if (args.length == 1) {
+                    Daemon.serve();
+                } else if (args.length == 2 && args[1].equals("stop")) {
+                    throw error("No gitlet daemon is running.");
+                } else {
+                    throw new GitletException();
+                }
                 break;
+            default:
+                throw error("No command with that name exists.");
         }
     }
 }
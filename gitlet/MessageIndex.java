@@ -0,0 +1,410 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+import static gitlet.Utils.*;
+
+/** An index of commit messages, so that find answers without reading commit objects.
+ *  It is kept in two files:
+ *      LOG_FILE, to which every new commit is appended:
+ *          [id: 20 bytes][message length: 4 bytes][message: UTF-8]
+ *      INDEX_FILE, memory-mapped, covering the log up to some offset:
+ *          INDEX_MAGIC, the covered length of the log, a record count N, a trigram count T,
+ *          then N entries [message hash: 8 bytes][record offset: 4 bytes] sorted by hash,
+ *          T entries [trigram: 4 bytes][first posting: 4 bytes][posting count: 4 bytes]
+ *          sorted by trigram, and the postings: offsets of the records whose message
+ *          contains the trigram (three consecutive bytes), ascending.
+ *  An exact message is looked up by its hash, and a substring through the postings of
+ *  its trigrams; either way only the candidates' messages are read from the log, and
+ *  then only to rule out collisions. A regular expression is matched against every
+ *  message of the log. Records past the covered part are scanned; the index is rewritten
+ *  once there are TAIL_LIMIT of them, and by gc.
+ *  Like the commit-graph, the index can always be rebuilt from the commits, and is when
+ *  the log is missing (e.g. in an older repository) or was cut short by a crash. Queries
+ *  return null rather than rebuild it, so that read-only commands can use them.
+ *
+ *  @author flora
+ */
+public class MessageIndex {
+
+    /** The message log in .gitlet/. */
+    public static final File LOG_FILE = join(Repository.GITLET_DIR, "messages");
+    /** The index of the log. */
+    public static final File INDEX_FILE = join(Repository.GITLET_DIR, "message-index");
+
+    private static final byte[] INDEX_MAGIC = {'G', 'M', 'S', 'I'};
+    /** Length of the header: magic, covered length, record and trigram counts. */
+    private static final int HEADER = INDEX_MAGIC.length + 4 + 4 + 4;
+    /** Length of the raw (binary) form of an id. */
+    private static final int ID_BYTES = UID_LENGTH / 2;
+    /** Lengths of one hash entry and one trigram entry of INDEX_FILE. */
+    private static final int HASH_ENTRY = 8 + 4;
+    private static final int TRIGRAM_ENTRY = 4 + 4 + 4;
+    /** Number of records past the covered part of the log at which the index is rewritten. */
+    private static final int TAIL_LIMIT = 256;
+
+    /* Instance variables */
+
+    /** The mapped LOG_FILE. */
+    private final ByteBuffer log;
+    /** The mapped INDEX_FILE, or null if there is none covering the log. */
+    private final ByteBuffer index;
+    /** Number of records and of trigrams in the index. */
+    private final int count;
+    private final int trigrams;
+    /** Offsets of the records past the covered part of the log. */
+    private final List<Integer> tail = new ArrayList<>();
+    /** Whether the log ends with an incomplete record (cut short by a crash). */
+    private final boolean torn;
+
+    /** Opens the index as stored in LOG_FILE and INDEX_FILE; LOG_FILE must exist. */
+    private MessageIndex() {
+        log = map(LOG_FILE);
+        ByteBuffer mapped = null;
+        int covered = 0;
+        if (INDEX_FILE.exists()) {
+            mapped = map(INDEX_FILE);
+            byte[] magic = new byte[INDEX_MAGIC.length];
+            if (mapped.capacity() >= HEADER) {
+                mapped.get(0, magic);
+                covered = mapped.getInt(INDEX_MAGIC.length);
+            }
+            if (!Arrays.equals(magic, INDEX_MAGIC) || covered > log.capacity()) {
+                mapped = null; // damaged or stale; the whole log is scanned instead
+                covered = 0;
+            }
+        }
+        index = mapped;
+        count = mapped == null ? 0 : mapped.getInt(INDEX_MAGIC.length + 4);
+        trigrams = mapped == null ? 0 : mapped.getInt(INDEX_MAGIC.length + 8);
+        int offset = covered;
+        while (offset + ID_BYTES + 4 <= log.capacity() && log.getInt(offset + ID_BYTES) >= 0
+                && log.getInt(offset + ID_BYTES) <= log.capacity() - offset - ID_BYTES - 4) {
+            tail.add(offset);
+            offset = next(offset);
+        }
+        torn = offset != log.capacity();
+    }
+
+    /* Updating */
+
+    /** Adds the message of COMMIT, which has just been saved, to the index. */
+    public static void add(Commit commit) {
+        if (!LOG_FILE.exists()) {
+            rebuild(); // picks up COMMIT as well, since it is saved already
+            return;
+        }
+        MessageIndex m = new MessageIndex();
+        if (m.torn) {
+            rebuild();
+            return;
+        }
+        try (FileOutputStream out = new FileOutputStream(LOG_FILE, true)) {
+            out.write(record(commit.getId(), commit.getMessage()));
+        } catch (IOException e) {
+            LOG_FILE.delete(); // rebuilt with the next commit; until then find reads the commits
+            return;
+        }
+        if (m.tail.size() + 1 >= TAIL_LIMIT) {
+            write();
+        }
+    }
+
+    /** Rewrites INDEX_FILE to cover the whole log. */
+    public static void write() {
+        if (!LOG_FILE.exists() || new MessageIndex().torn) {
+            rebuild();
+            return;
+        }
+        writeIndex(readContents(LOG_FILE));
+    }
+
+    /** Rebuilds the log and the index from the commits currently stored, loose or packed. */
+    public static void rebuild() {
+        List<String> all = new ArrayList<>();
+        for (String id : Commit.allIds()) {
+            if (id.length() == UID_LENGTH) {
+                all.add(id);
+            }
+        }
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        Commit.readInOrder(all, commit -> {
+            buf.writeBytes(record(commit.getId(), commit.getMessage()));
+            return true;
+        });
+        byte[] contents = buf.toByteArray();
+        INDEX_FILE.delete(); // its offsets would not match the new log
+        writeAtomic(LOG_FILE, contents);
+        writeIndex(contents);
+    }
+
+    /** Returns the log record of the commit ID with MESSAGE. */
+    private static byte[] record(String id, String message) {
+        byte[] text = message.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer record = ByteBuffer.allocate(ID_BYTES + 4 + text.length);
+        record.put(toBytes(id));
+        record.putInt(text.length);
+        record.put(text);
+        return record.array();
+    }
+
+    /** Writes an INDEX_FILE covering all complete records of the log, whose contents are LOG. */
+    private static void writeIndex(byte[] log) {
+        ByteBuffer in = ByteBuffer.wrap(log);
+        List<Integer> offsets = new ArrayList<>();
+        int covered = 0;
+        int pairs = 0;
+        while (covered + ID_BYTES + 4 <= log.length) {
+            int length = in.getInt(covered + ID_BYTES);
+            if (length < 0 || length > log.length - covered - ID_BYTES - 4) {
+                break;
+            }
+            offsets.add(covered);
+            pairs += Math.max(length - 2, 0);
+            covered += ID_BYTES + 4 + length;
+        }
+        int n = offsets.size();
+
+        // Hash entries, sorted by hash
+        long[] hashes = new long[n];
+        Integer[] byHash = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            int start = offsets.get(i) + ID_BYTES + 4;
+            hashes[i] = hash(log, start, in.getInt(start - 4));
+            byHash[i] = i;
+        }
+        Arrays.sort(byHash, Comparator.comparingLong((Integer i) -> hashes[i]));
+
+        // (trigram, offset) pairs, sorted: runs of one trigram are its postings, ascending
+        long[] postings = new long[pairs];
+        int p = 0;
+        for (int offset : offsets) {
+            int start = offset + ID_BYTES + 4;
+            int end = start + in.getInt(offset + ID_BYTES);
+            for (int i = start; i + 3 <= end; i++) {
+                postings[p++] = ((long) trigram(log, i) << 32) | offset;
+            }
+        }
+        Arrays.sort(postings);
+        int distinct = 0;
+        int trigramCount = 0;
+        for (int i = 0; i < pairs; i++) {
+            if (i == 0 || postings[i] != postings[i - 1]) {
+                if (i == 0 || (postings[i] >>> 32) != (postings[i - 1] >>> 32)) {
+                    trigramCount++;
+                }
+                postings[distinct++] = postings[i];
+            }
+        }
+
+        ByteBuffer buf = ByteBuffer.allocate(HEADER + n * HASH_ENTRY
+                + trigramCount * TRIGRAM_ENTRY + distinct * 4);
+        buf.put(INDEX_MAGIC);
+        buf.putInt(covered);
+        buf.putInt(n);
+        buf.putInt(trigramCount);
+        for (int i : byHash) {
+            buf.putLong(hashes[i]);
+            buf.putInt(offsets.get(i));
+        }
+        for (int i = 0; i < distinct; ) {
+            int j = i;
+            while (j < distinct && (postings[j] >>> 32) == (postings[i] >>> 32)) {
+                j++;
+            }
+            buf.putInt((int) (postings[i] >>> 32));
+            buf.putInt(i);
+            buf.putInt(j - i);
+            i = j;
+        }
+        for (int i = 0; i < distinct; i++) {
+            buf.putInt((int) postings[i]);
+        }
+        writeAtomic(INDEX_FILE, buf.array());
+    }
+
+    /* Querying */
+
+    /** Returns the ids of the commits whose message is MESSAGE, in order,
+     *  or null if there is no index to answer from. */
+    public static SortedSet<String> exact(String message) {
+        if (!LOG_FILE.exists()) {
+            return null;
+        }
+        MessageIndex m = new MessageIndex();
+        byte[] text = message.getBytes(StandardCharsets.UTF_8);
+        long h = hash(text, 0, text.length);
+        List<Integer> candidates = new ArrayList<>();
+        // Binary search for the first entry with hash H
+        int lo = 0;
+        int hi = m.count;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (m.index.getLong(HEADER + mid * HASH_ENTRY) < h) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        for (int i = lo; i < m.count && m.index.getLong(HEADER + i * HASH_ENTRY) == h; i++) {
+            candidates.add(m.index.getInt(HEADER + i * HASH_ENTRY + 8));
+        }
+        candidates.addAll(m.tail);
+        return m.select(candidates, message::equals);
+    }
+
+    /** Returns the ids of the commits whose message contains TEXT, in order,
+     *  or null if there is no index to answer from. */
+    public static SortedSet<String> containing(String text) {
+        if (!LOG_FILE.exists()) {
+            return null;
+        }
+        MessageIndex m = new MessageIndex();
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length < 3 || m.index == null) {
+            return m.select(m.all(), message -> message.contains(text));
+        }
+        // Intersect the postings of the trigrams of TEXT, the shortest first
+        List<int[]> lists = new ArrayList<>();
+        for (int i = 0; i + 3 <= bytes.length; i++) {
+            lists.add(m.postings(trigram(bytes, i)));
+        }
+        lists.sort(Comparator.comparingInt(list -> list.length));
+        int[] common = lists.get(0);
+        for (int[] list : lists.subList(1, lists.size())) {
+            common = intersect(common, list);
+        }
+        List<Integer> candidates = new ArrayList<>();
+        for (int offset : common) {
+            candidates.add(offset);
+        }
+        candidates.addAll(m.tail);
+        return m.select(candidates, message -> message.contains(text));
+    }
+
+    /** Returns the ids of the commits with a message in which PATTERN is found, in order,
+     *  or null if there is no index to answer from. */
+    public static SortedSet<String> matching(Pattern pattern) {
+        if (!LOG_FILE.exists()) {
+            return null;
+        }
+        MessageIndex m = new MessageIndex();
+        return m.select(m.all(), message -> pattern.matcher(message).find());
+    }
+
+    /** Returns the ids of the records at OFFSETS whose message passes TEST. */
+    private SortedSet<String> select(List<Integer> offsets, Predicate<String> test) {
+        SortedSet<String> ids = new TreeSet<>();
+        for (int offset : offsets) {
+            int length = log.getInt(offset + ID_BYTES);
+            byte[] text = new byte[length];
+            log.get(offset + ID_BYTES + 4, text);
+            if (test.test(new String(text, StandardCharsets.UTF_8))) {
+                byte[] id = new byte[ID_BYTES];
+                log.get(offset, id);
+                ids.add(toHex(id));
+            }
+        }
+        return ids;
+    }
+
+    /** Returns the offsets of all records of the log. */
+    private List<Integer> all() {
+        List<Integer> offsets = new ArrayList<>();
+        int covered = tail.isEmpty() ? (index == null ? 0 : index.getInt(INDEX_MAGIC.length)) : tail.get(0);
+        for (int offset = 0; offset < covered; offset = next(offset)) {
+            offsets.add(offset);
+        }
+        offsets.addAll(tail);
+        return offsets;
+    }
+
+    /** Returns the postings of TRIGRAM: the offsets of the covered records that contain it. */
+    private int[] postings(int trigram) {
+        int base = HEADER + count * HASH_ENTRY;
+        int lo = 0;
+        int hi = trigrams - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int entry = base + mid * TRIGRAM_ENTRY;
+            int cmp = Integer.compare(index.getInt(entry), trigram);
+            if (cmp < 0) {
+                lo = mid + 1;
+            } else if (cmp > 0) {
+                hi = mid - 1;
+            } else {
+                int first = index.getInt(entry + 4);
+                int[] list = new int[index.getInt(entry + 8)];
+                int start = base + trigrams * TRIGRAM_ENTRY + first * 4;
+                for (int i = 0; i < list.length; i++) {
+                    list[i] = index.getInt(start + i * 4);
+                }
+                return list;
+            }
+        }
+        return new int[0];
+    }
+
+    /** Returns the offset of the record following the one at OFFSET. */
+    private int next(int offset) {
+        return offset + ID_BYTES + 4 + log.getInt(offset + ID_BYTES);
+    }
+
+    /** Returns the values found in both A and B, which are ascending. */
+    private static int[] intersect(int[] a, int[] b) {
+        int[] common = new int[Math.min(a.length, b.length)];
+        int n = 0;
+        for (int i = 0, j = 0; i < a.length && j < b.length; ) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                common[n++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(common, n);
+    }
+
+    /** Returns the trigram made of the three bytes of TEXT at START. */
+    private static int trigram(byte[] text, int start) {
+        return (text[start] & 0xff) << 16 | (text[start + 1] & 0xff) << 8 | (text[start + 2] & 0xff);
+    }
+
+    /** Returns the 64-bit FNV-1a hash of the LENGTH bytes of TEXT at START. */
+    private static long hash(byte[] text, int start, int length) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = start; i < start + length; i++) {
+            h ^= text[i] & 0xff;
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    /** Maps the whole FILE read-only. */
+    private static ByteBuffer map(File file) {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+}
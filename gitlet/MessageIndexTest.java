@@ -0,0 +1,128 @@
+package gitlet;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+import static gitlet.Utils.*;
+
+/** Tests of the MessageIndex lookups (by hash, by trigram, and by regular expression)
+ *  against a linear scan of the messages of all commits.
+ *
+ *  @author flora
+ */
+public class MessageIndexTest {
+    public static final File CWD = Repository.CWD;
+
+    /** Messages of the commits, with duplicates, non-ASCII text and regex characters. */
+    private static final String[] MESSAGES = {
+        "initial commit", "fix", "Fix bug in parser", "fix: bug in parser", "add feature",
+        "merge branch 'other'", "héllo wörld", "日本語のメッセージ", "a", "ab", "abc",
+        "(regex) [chars] .* +?", "tab\tand\nnewline", "fix 42", "release 1.0.0",
+    };
+    /** Texts searched for, among them some that are in no message. */
+    private static final String[] TEXTS = {
+        "fix", "Fix", "ix b", "bug in parser", "a", "ab", "abc", "", "wörld", "本語",
+        ".*", "\n", "zzz", "release 1.0.0 and more", "commit 1",
+    };
+    /** Regular expressions searched for. */
+    private static final String[] PATTERNS = {
+        "^fix", "b.g", "\\d+$", "wör", "(?i)FIX", "^$", "メッセ", "^a{1,2}$",
+    };
+
+    /** Starts every test from a fresh repository. */
+    @Before
+    public void setUp() throws IOException {
+        if (Repository.GITLET_DIR.exists()) {
+            cleanRepo(CWD);
+        }
+        Repository.init();
+    }
+
+    /** Saves COUNT commits with messages drawn from MESSAGES, some with a number appended. */
+    private static void commit(int count, Random random) {
+        String tree = Tree.write(new TreeMap<>());
+        String parent = readContentsAsString(Repository.HEAD);
+        long time = System.currentTimeMillis();
+        for (int i = 0; i < count; i++) {
+            String message = MESSAGES[random.nextInt(MESSAGES.length)];
+            if (random.nextBoolean()) {
+                message += " " + random.nextInt(20);
+            }
+            Commit commit = new Commit(message, List.of(parent), tree, new Date(time + i * 1000L));
+            commit.saveCommit();
+            parent = commit.getId();
+        }
+    }
+
+    /** Returns the ids of the commits whose message passes TEST, by reading every commit. */
+    private static SortedSet<String> scan(Predicate<String> test) {
+        SortedSet<String> ids = new TreeSet<>();
+        for (String id : Commit.allIds()) {
+            if (test.test(Commit.getCommitFromId(id).getMessage())) {
+                ids.add(id);
+            }
+        }
+        return ids;
+    }
+
+    /** Asserts that every lookup gives the same commits as a scan. */
+    private static void assertLookups() {
+        for (String message : MESSAGES) {
+            for (String suffix : new String[]{"", " 7", " 99"}) {
+                String m = message + suffix;
+                Assert.assertEquals("exact " + m, scan(m::equals), MessageIndex.exact(m));
+            }
+        }
+        for (String text : TEXTS) {
+            Assert.assertEquals("containing " + text, scan(m -> m.contains(text)), MessageIndex.containing(text));
+        }
+        for (String regex : PATTERNS) {
+            Pattern pattern = Pattern.compile(regex);
+            Assert.assertEquals("matching " + regex, scan(m -> pattern.matcher(m).find()),
+                    MessageIndex.matching(pattern));
+        }
+    }
+
+    /** Test lookups in the indexed part of the log and in its tail, before and after
+     *  the index is rewritten to cover all of it. */
+    @Test
+    public void testLookups() {
+        // More commits than the tail holds, so that the index has been written once already
+        commit(400, new Random(24));
+        assertLookups();
+        MessageIndex.write();
+        assertLookups();
+    }
+
+    /** Test lookups in a log whose index only covers the initial commit. */
+    @Test
+    public void testTailOnly() {
+        commit(100, new Random(240));
+        assertLookups();
+    }
+
+    /** Test that there are no answers without a log, and the same answers once it is rebuilt. */
+    @Test
+    public void testRebuild() {
+        commit(300, new Random(2400));
+        MessageIndex.LOG_FILE.delete();
+        MessageIndex.INDEX_FILE.delete();
+        Assert.assertNull(MessageIndex.exact("fix"));
+        Assert.assertNull(MessageIndex.containing("fix"));
+        Assert.assertNull(MessageIndex.matching(Pattern.compile("fix")));
+        MessageIndex.rebuild();
+        assertLookups();
+    }
+}
@@ -0,0 +1,872 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import static gitlet.Utils.*;
+
+/** A pack bundles many objects (commits, trees and blobs) into one file, so that reading
+ *  lots of objects does not mean opening lots of small files.
+ *  Each pack is a pair of files in .gitlet/packs/:
+ *      pack-<sha>.pack  # PACK_MAGIC, then the stored bytes of each object back to back
+ *      pack-<sha>.idx   # INDEX_MAGIC, a count, then fixed-size records sorted by id:
+ *                       #   [id: 20 bytes][type: 1 byte][offset: 8 bytes][length: 4 bytes]
+ *  where the type of a blob in the old serialized format (whose id is not the sha-1 of
+ *  its content) carries the LEGACY flag, so it is known without reading the blob.
+ *  Indexes of packs written before the flag existed start with OLD_INDEX_MAGIC instead.
+ *  Commits and trees are kept exactly as they would be stored loose (compressed or not).
+ *  A blob is either kept the same way, or as a delta against another version of the
+ *  same path ([base id: 20 bytes][compressed Delta]), so that files changing a few
+ *  lines per commit are not stored in full each time. Delta chains are at most
+ *  MAX_DEPTH long.
+ *  Both files are read through memory-mapped FileChannels. gc rolls over to another pack
+ *  once one reaches MAX_PACK, and reads every object back from the new packs before it
+ *  deletes any loose object or old pack.
+ *  Loose objects always take precedence over packed ones; blobs above BIG_FILE
+ *  are never packed.
+ *
+ *  @author flora
+ */
+public class PackFile {
+
+    /** The pack directory, a subdirectory of .gitlet. */
+    public static final File PACK_FOLDER = join(Repository.GITLET_DIR, "packs");
+
+    /** Type of a packed commit. */
+    public static final byte COMMIT = 'c';
+    /** Type of a packed tree. */
+    public static final byte TREE = 't';
+    /** Type of a packed blob. */
+    public static final byte BLOB = 'b';
+    /** Type of a packed blob stored as a delta against another blob. */
+    private static final byte DELTA = 'd';
+    /** Flag set on the type of a blob in the old serialized format. */
+    private static final byte LEGACY = (byte) 0x80;
+
+    /** Longest chain of deltas to follow when reading a blob. */
+    private static final int MAX_DEPTH = 10;
+    /** Number of recent versions of a path tried as delta bases. */
+    private static final int WINDOW = 10;
+    /** Largest length of a pack: gc starts another pack past it, so that offsets within a
+     *  pack always fit the int positions of a mapped buffer. */
+    private static final long MAX_PACK = 1L << 30;
+    /** Blobs whose content is larger than this stay loose, so that gc never holds them in memory
+     *  and they can always be streamed. */
+    private static final long BIG_FILE = 32L * 1024 * 1024;
+
+    private static final byte[] PACK_MAGIC = {'G', 'P', 'A', 'K'};
+    private static final byte[] INDEX_MAGIC = {'G', 'I', 'D', '2'};
+    /** Magic of the indexes written before blobs were flagged LEGACY. */
+    private static final byte[] OLD_INDEX_MAGIC = {'G', 'I', 'D', 'X'};
+    /** Length of the index header: magic and object count. */
+    private static final int INDEX_HEADER = INDEX_MAGIC.length + 4;
+    /** Length of the raw (binary) form of an id. */
+    private static final int ID_BYTES = UID_LENGTH / 2;
+    /** Length of one index record. */
+    private static final int RECORD = ID_BYTES + 1 + 8 + 4;
+
+    /** All packs of the repository, opened on first use. */
+    private static List<PackFile> packs;
+
+    /* Instance variables */
+
+    private final File packPath;
+    private final File indexPath;
+    private final MappedByteBuffer pack;
+    private final MappedByteBuffer index;
+    /** Number of objects in this pack. */
+    private final int size;
+    /** Whether the index flags the LEGACY blobs; otherwise (an older pack) they are unmarked. */
+    private final boolean flagsLegacy;
+
+    /** Opens and maps the pack whose index file is INDEXPATH. */
+    private PackFile(File indexPath) {
+        this.indexPath = indexPath;
+        String name = indexPath.getName();
+        this.packPath = join(PACK_FOLDER, name.substring(0, name.length() - ".idx".length()) + ".pack");
+        this.index = map(indexPath);
+        this.pack = map(packPath);
+        byte[] magic = new byte[INDEX_MAGIC.length];
+        index.get(0, magic);
+        this.flagsLegacy = startsWith(magic, INDEX_MAGIC);
+        if (!flagsLegacy && !startsWith(magic, OLD_INDEX_MAGIC)) {
+            throw error("Corrupted pack index %s.", name);
+        }
+        this.size = index.getInt(INDEX_MAGIC.length);
+    }
+
+    /* Reading */
+
+    /** Returns the stored bytes of the packed commit ID, or null if no pack holds it. */
+    public static byte[] readCommit(String id) {
+        for (PackFile p : getPacks()) {
+            int pos = p.find(COMMIT, id);
+            if (pos >= 0) {
+                return p.storedAt(pos);
+            }
+        }
+        return null;
+    }
+
+    /** Returns the stored bytes of the packed tree ID, or null if no pack holds it. */
+    public static byte[] readTree(String id) {
+        for (PackFile p : getPacks()) {
+            int pos = p.find(TREE, id);
+            if (pos >= 0) {
+                return p.storedAt(pos);
+            }
+        }
+        return null;
+    }
+
+    /** Returns the raw content of the packed blob ID, rebuilding it from its
+     *  delta chain if needed, or null if no pack holds it. */
+    public static byte[] readBlob(String id) {
+        for (PackFile p : getPacks()) {
+            int pos = p.find(BLOB, id);
+            if (pos >= 0) {
+                return p.blobAt(pos);
+            }
+        }
+        return null;
+    }
+
+    /** Opens a stream over the raw content of the packed blob ID,
+     *  or returns null if no pack holds it.
+     *  Blobs stored in full are streamed straight from the mapped pack;
+     *  deltified ones are rebuilt in memory (they are below BIG_FILE). */
+    public static InputStream openBlob(String id) {
+        for (PackFile p : getPacks()) {
+            int pos = p.find(BLOB, id);
+            if (pos >= 0) {
+                if (p.typeAt(pos) == DELTA) {
+                    return new ByteArrayInputStream(p.blobAt(pos));
+                }
+                int base = INDEX_HEADER + pos * RECORD + ID_BYTES + 1;
+                ByteBuffer stored = p.pack.slice((int) p.index.getLong(base), p.index.getInt(base + 8));
+                try {
+                    return Blob.decode(new BufferedInputStream(new ByteBufferInputStream(stored)));
+                } catch (IOException e) {
+                    throw new IllegalArgumentException(e.getMessage());
+                }
+            }
+        }
+        return null;
+    }
+
+    /** Returns the content of the packed blob ID as a slice of the mapped pack if it is
+     *  stored in full and uncompressed, so it can be written out without copying;
+     *  returns null otherwise. */
+    public static ByteBuffer rawBlob(String id) {
+        for (PackFile p : getPacks()) {
+            int pos = p.find(BLOB, id);
+            if (pos >= 0) {
+                if (p.typeAt(pos) == DELTA) {
+                    return null;
+                }
+                int base = INDEX_HEADER + pos * RECORD + ID_BYTES + 1;
+                ByteBuffer stored = p.pack.slice((int) p.index.getLong(base), p.index.getInt(base + 8));
+                byte[] head = new byte[Math.min(COMPRESSED_MAGIC.length, stored.remaining())];
+                stored.get(0, head);
+                return Blob.isRaw(head) ? stored : null;
+            }
+        }
+        return null;
+    }
+
+    /** An InputStream over the remaining bytes of a ByteBuffer. */
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buf;
+
+        ByteBufferInputStream(ByteBuffer buf) {
+            this.buf = buf;
+        }
+
+        @Override
+        public int read() {
+            return buf.hasRemaining() ? buf.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (!buf.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, buf.remaining());
+            buf.get(b, off, n);
+            return n;
+        }
+    }
+
+    /** Returns true if the packed blob ID is in the old serialized format, whose id is
+     *  sha1(name + content), and false if it is not or no pack holds it.
+     *  Answered from the index, except for blobs stored as deltas in a pack written before
+     *  the LEGACY flag, which are rebuilt and hashed. */
+    public static boolean isLegacyBlob(String id) {
+        for (PackFile p : getPacks()) {
+            int pos = p.find(BLOB, id);
+            if (pos < 0) {
+                continue;
+            }
+            if (p.flagsLegacy) {
+                return (p.index.get(INDEX_HEADER + pos * RECORD + ID_BYTES) & LEGACY) != 0;
+            }
+            if (p.typeAt(pos) == DELTA) {
+                return !sha1(p.blobAt(pos)).equals(id);
+            }
+            byte[] head = new byte[Math.min(PACK_MAGIC.length, p.lengthAt(pos))];
+            p.pack.get((int) p.offsetAt(pos), head);
+            return Blob.isLegacy(head);
+        }
+        return false;
+    }
+
+    /** Returns true if some pack holds the object ID of the given TYPE. */
+    public static boolean contains(byte type, String id) {
+        for (PackFile p : getPacks()) {
+            if (p.find(type, id) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Returns the ids of all packed objects of the given TYPE, in lexicographic order. */
+    public static List<String> ids(byte type) {
+        List<String> res = new ArrayList<>();
+        for (PackFile p : getPacks()) {
+            for (int i = 0; i < p.size; i++) {
+                if (matches(p.typeAt(i), type)) {
+                    res.add(p.idAt(i));
+                }
+            }
+        }
+        res.sort(null);
+        return res;
+    }
+
+    /** Returns the record number of object ID of TYPE in this pack, or -1. */
+    private int find(byte type, String id) {
+        byte[] key;
+        try {
+            key = toBytes(id);
+        } catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+            return -1; // not an id at all
+        }
+        int lo = 0;
+        int hi = size - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = compareIdAt(mid, key);
+            if (cmp < 0) {
+                lo = mid + 1;
+            } else if (cmp > 0) {
+                hi = mid - 1;
+            } else {
+                return matches(typeAt(mid), type) ? mid : -1;
+            }
+        }
+        return -1;
+    }
+
+    /** Returns true if a record of type STORED holds an object of TYPE. */
+    private static boolean matches(byte stored, byte type) {
+        return stored == type || (stored == DELTA && type == BLOB);
+    }
+
+    /** Compares the id of record POS with the raw id KEY. */
+    private int compareIdAt(int pos, byte[] key) {
+        int base = INDEX_HEADER + pos * RECORD;
+        for (int i = 0; i < ID_BYTES; i++) {
+            int cmp = Integer.compare(index.get(base + i) & 0xff, key[i] & 0xff);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return 0;
+    }
+
+    private String idAt(int pos) {
+        byte[] raw = new byte[ID_BYTES];
+        index.get(INDEX_HEADER + pos * RECORD, raw);
+        return toHex(raw);
+    }
+
+    /** Returns the type of record POS, without the LEGACY flag. */
+    private byte typeAt(int pos) {
+        return (byte) (index.get(INDEX_HEADER + pos * RECORD + ID_BYTES) & ~LEGACY);
+    }
+
+    /** Returns the offset in the pack of the stored bytes of record POS. */
+    private long offsetAt(int pos) {
+        return index.getLong(INDEX_HEADER + pos * RECORD + ID_BYTES + 1);
+    }
+
+    /** Returns the length of the stored bytes of record POS. */
+    private int lengthAt(int pos) {
+        return index.getInt(INDEX_HEADER + pos * RECORD + ID_BYTES + 1 + 8);
+    }
+
+    /** Returns the raw content of the blob in record POS. */
+    private byte[] blobAt(int pos) {
+        byte[] stored = storedAt(pos);
+        if (typeAt(pos) != DELTA) {
+            return Blob.contentOf(stored);
+        }
+        String baseId = toHex(Arrays.copyOfRange(stored, 0, ID_BYTES));
+        byte[] base = readBlob(baseId);
+        if (base == null) {
+            throw error("Missing delta base %s.", baseId);
+        }
+        return Delta.apply(base, decompress(Arrays.copyOfRange(stored, ID_BYTES, stored.length)));
+    }
+
+    /** Returns the stored bytes of record POS. */
+    private byte[] storedAt(int pos) {
+        int base = INDEX_HEADER + pos * RECORD + ID_BYTES + 1;
+        long offset = index.getLong(base);
+        int length = index.getInt(base + 8);
+        byte[] res = new byte[length];
+        pack.get((int) offset, res);
+        return res;
+    }
+
+    /** Returns all packs in PACK_FOLDER, opening them on first use.
+     *  Synchronized since blobs may be stored from several threads at once. */
+    private static synchronized List<PackFile> getPacks() {
+        if (packs == null) {
+            List<PackFile> opened = new ArrayList<>();
+            String[] names = PACK_FOLDER.list();
+            if (names != null) {
+                for (String name : names) {
+                    if (name.startsWith("pack-") && name.endsWith(".idx")) {
+                        opened.add(new PackFile(join(PACK_FOLDER, name)));
+                    }
+                }
+            }
+            packs = opened;
+        }
+        return packs;
+    }
+
+    /** Forgets the open packs if the packs in PACK_FOLDER are no longer the same,
+     *  e.g. after another process ran gc. Called by the daemon before each command. */
+    static synchronized void reload() {
+        if (packs == null) {
+            return;
+        }
+        Set<String> current = new HashSet<>();
+        String[] names = PACK_FOLDER.list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.startsWith("pack-") && name.endsWith(".idx")) {
+                    current.add(name);
+                }
+            }
+        }
+        Set<String> opened = new HashSet<>();
+        for (PackFile p : packs) {
+            opened.add(p.indexPath.getName());
+        }
+        if (!current.equals(opened)) {
+            packs = null;
+        }
+    }
+
+    /** Maps the whole FILE read-only. */
+    private static MappedByteBuffer map(File file) {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    /* Packing */
+
+    /** Consolidates all loose objects and existing packs into new packs (one unless they
+     *  grow past MAX_PACK), checks that every object reads back from them, then deletes
+     *  the loose objects and the old packs.
+     *  Blobs are deltified against other versions of the same path where that is smaller.
+     *  @return the number of objects in the new pack */
+    public static int gc() {
+        // Gather every object, loose or packed
+        TreeSet<String> commits = new TreeSet<>(ids(COMMIT));
+        TreeSet<String> trees = new TreeSet<>(ids(TREE));
+        TreeSet<String> blobs = new TreeSet<>(ids(BLOB));
+        Map<String, Long> sizes = new HashMap<>();
+        for (String id : blobs) {
+            sizes.put(id, contentSize(id));
+        }
+        List<String> looseCommits = objectIdsIn(Commit.COMMIT_FOLDER);
+        List<String> looseTrees = objectIdsIn(Tree.TREE_FOLDER);
+        List<String> looseBlobs = new ArrayList<>();
+        if (looseCommits != null) {
+            commits.addAll(looseCommits);
+        }
+        if (looseTrees != null) {
+            trees.addAll(looseTrees);
+        }
+        List<String> allLooseBlobs = objectIdsIn(Blob.BLOB_FOLDER);
+        if (allLooseBlobs != null) {
+            for (String id : allLooseBlobs) {
+                long size = contentSize(id);
+                if (size <= BIG_FILE) { // big files stay loose
+                    looseBlobs.add(id);
+                    blobs.add(id);
+                    sizes.put(id, size);
+                }
+            }
+        }
+        if (!PACK_FOLDER.exists()) {
+            PACK_FOLDER.mkdir();
+        }
+
+        // Write the new packs and their indexes, each pack at most MAX_PACK long
+        List<PackFile> old = getPacks();
+        Set<File> oldIndexes = new HashSet<>();
+        for (PackFile p : old) {
+            if (p.flagsLegacy) { // older packs are rewritten, even if they hold the same objects
+                oldIndexes.add(p.indexPath);
+            }
+        }
+        PackWriter writer = new PackWriter();
+        try {
+            for (String id : commits) {
+                byte[] stored = readStored(Commit.COMMIT_FOLDER, COMMIT, id);
+                writer.write(id, COMMIT, stored, sha1(stored));
+            }
+            for (String id : trees) {
+                byte[] stored = readStored(Tree.TREE_FOLDER, TREE, id);
+                writer.write(id, TREE, stored, sha1(stored));
+            }
+            for (List<String> versions : blobsByPath(commits, blobs)) {
+                writeBlobs(versions, sizes, writer);
+            }
+            writer.finish(oldIndexes);
+        } catch (IOException e) {
+            writer.discard();
+            throw new RuntimeException(e);
+        }
+
+        // Read every object back from the new packs before anything else is deleted
+        List<PackFile> written = new ArrayList<>();
+        String damaged = null;
+        for (File indexPath : writer.published) {
+            try {
+                written.add(new PackFile(indexPath));
+            } catch (RuntimeException e) {
+                damaged = indexPath.getName() + " cannot be opened";
+                break;
+            }
+        }
+        packs = written;
+        for (int i = 0; i < written.size() && damaged == null; i++) {
+            damaged = written.get(i).verify(writer.entries.get(i));
+        }
+        if (damaged != null) {
+            packs = null;
+            writer.discard();
+            throw error("Could not write a pack: %s; nothing was deleted.", damaged);
+        }
+
+        // Drop what is now redundant
+        Set<File> kept = new HashSet<>(writer.published);
+        for (PackFile p : old) {
+            if (!kept.contains(p.indexPath)) {
+                p.indexPath.delete();
+                p.packPath.delete();
+            }
+        }
+        deleteLoose(Commit.COMMIT_FOLDER, looseCommits);
+        deleteLoose(Tree.TREE_FOLDER, looseTrees);
+        deleteLoose(Blob.BLOB_FOLDER, looseBlobs);
+        packs = null;
+        int count = 0;
+        for (List<Entry> entries : writer.entries) {
+            count += entries.size();
+        }
+        return count;
+    }
+
+    /** Returns a description of the first object of this pack that does not read back as its
+     *  entry in ENTRIES (sorted by id, like the index) says it should, or of a pack that does not
+     *  hold as many objects as ENTRIES, or null if all of them do. */
+    private String verify(List<Entry> entries) {
+        if (size != entries.size()) {
+            return String.format("%s holds %d objects instead of %d", packPath.getName(), size, entries.size());
+        }
+        for (int pos = 0; pos < size; pos++) {
+            Entry e = entries.get(pos);
+            try {
+                // A pack kept from before may store a blob in full where the entry is a delta, or back
+                byte type = typeAt(pos);
+                byte expected = (byte) (e.type & ~LEGACY);
+                boolean blob = matches(type, BLOB);
+                boolean legacy = (index.get(INDEX_HEADER + pos * RECORD + ID_BYTES) & LEGACY) != 0;
+                if (!idAt(pos).equals(e.id) || blob != matches(expected, BLOB) || (!blob && type != expected)
+                        || legacy != ((e.type & LEGACY) != 0)) {
+                    return "object " + e.id + " does not read back";
+                }
+                byte[] read = blob ? blobAt(pos) : storedAt(pos);
+                if (!sha1(read).equals(e.digest)) {
+                    return "object " + e.id + " does not read back";
+                }
+            } catch (RuntimeException ex) {
+                return "object " + e.id + " does not read back";
+            }
+        }
+        return null;
+    }
+
+    /** Writes objects to new packs, starting another pack whenever the current one would
+     *  grow past MAX_PACK, so that every offset fits the int positions of a mapped pack.
+     *  Packs are written under temporary names, and published by finish(). */
+    private static class PackWriter {
+        /** The objects of each pack, in the order written, then sorted by id by finish(). */
+        final List<List<Entry>> entries = new ArrayList<>();
+        /** The temporary pack files, one per pack. */
+        final List<File> tmpPacks = new ArrayList<>();
+        /** The index files of the published packs, one per pack. */
+        final List<File> published = new ArrayList<>();
+        /** The pack files published by finish() that did not exist before. */
+        private final List<File> created = new ArrayList<>();
+        private DataOutputStream out;
+        /** Length of the current pack so far. */
+        private long written;
+
+        /** Appends the STORED bytes of object ID of TYPE, whose content has the sha-1 DIGEST.
+         *  A blob whose DIGEST is not its ID is in the old serialized format, and flagged LEGACY. */
+        void write(String id, byte type, byte[] stored, String digest) throws IOException {
+            if (out == null || (written > PACK_MAGIC.length && written + stored.length > MAX_PACK)) {
+                next();
+            }
+            if (matches(type, BLOB) && !digest.equals(id)) {
+                type |= LEGACY;
+            }
+            entries.get(entries.size() - 1).add(new Entry(id, type, written, stored.length, digest));
+            out.write(stored);
+            written += stored.length;
+        }
+
+        /** Closes the current pack and starts another. */
+        private void next() throws IOException {
+            if (out != null) {
+                out.close();
+            }
+            File tmp = File.createTempFile("pack-", ".pack.tmp", PACK_FOLDER);
+            tmpPacks.add(tmp);
+            entries.add(new ArrayList<>());
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.write(PACK_MAGIC);
+            written = PACK_MAGIC.length;
+        }
+
+        /** Writes the index of each pack and publishes the packs under their final names
+         *  (index last, since it is what makes a pack visible). A pack holding the same
+         *  objects as one of the OLDINDEXES is dropped in favour of the existing one. */
+        void finish(Set<File> oldIndexes) throws IOException {
+            if (out == null) {
+                next(); // an empty repository still gets a (empty) pack
+            }
+            out.close();
+            for (int i = 0; i < tmpPacks.size(); i++) {
+                List<Entry> list = entries.get(i);
+                list.sort((a, b) -> a.id.compareTo(b.id));
+                StringBuilder ids = new StringBuilder();
+                for (Entry e : list) {
+                    ids.append(e.id);
+                }
+                String name = "pack-" + sha1(ids.toString());
+                File newPack = join(PACK_FOLDER, name + ".pack");
+                File newIndex = join(PACK_FOLDER, name + ".idx");
+                published.add(newIndex);
+                if (oldIndexes.contains(newIndex)) {
+                    tmpPacks.get(i).delete(); // never replace a pack that is in use
+                    continue;
+                }
+                File tmpIndex = File.createTempFile(name + ".", ".idx.tmp", PACK_FOLDER);
+                try (DataOutputStream indexOut = new DataOutputStream(
+                         new BufferedOutputStream(new FileOutputStream(tmpIndex)))) {
+                    indexOut.write(INDEX_MAGIC);
+                    indexOut.writeInt(list.size());
+                    for (Entry e : list) {
+                        indexOut.write(toBytes(e.id));
+                        indexOut.writeByte(e.type);
+                        indexOut.writeLong(e.offset);
+                        indexOut.writeInt(e.length);
+                    }
+                }
+                if (!tmpPacks.get(i).renameTo(newPack) || !tmpIndex.renameTo(newIndex)) {
+                    tmpIndex.delete();
+                    throw new IOException("Could not write pack " + name + ".");
+                }
+                created.add(newPack);
+                created.add(newIndex);
+            }
+        }
+
+        /** Deletes all packs written, published or not. */
+        void discard() {
+            try {
+                if (out != null) {
+                    out.close();
+                }
+            } catch (IOException e) {
+                // deleted below anyway
+            }
+            for (File f : tmpPacks) {
+                f.delete();
+            }
+            for (File f : created) {
+                f.delete();
+            }
+        }
+    }
+
+    /** An object written to a new pack, and its place there. */
+    private static class Entry {
+        final String id;
+        final byte type;
+        final long offset;
+        final int length;
+        /** The sha-1 of the stored bytes of a commit or tree, or of the content of a blob. */
+        final String digest;
+
+        Entry(String id, byte type, long offset, int length, String digest) {
+            this.id = id;
+            this.type = type;
+            this.offset = offset;
+            this.length = length;
+            this.digest = digest;
+        }
+    }
+
+    /** A recently written blob, kept around as a possible delta base. */
+    private static class Base {
+        final String id;
+        final byte[] content;
+        /** Number of deltas to follow to rebuild this blob. */
+        final int depth;
+
+        Base(String id, byte[] content, int depth) {
+            this.id = id;
+            this.content = content;
+            this.depth = depth;
+        }
+    }
+
+    /** Groups BLOBS by the first path any of COMMITS tracks them under.
+     *  Blobs not tracked by any commit (e.g. only staged) form a group of their own.
+     *  Each tree is walked once, however many commits share it. */
+    private static Collection<List<String>> blobsByPath(Set<String> commits, Set<String> blobs) {
+        Map<String, List<String>> byPath = new TreeMap<>();
+        Set<String> grouped = new HashSet<>();
+        Set<String> walked = new HashSet<>();
+        for (String commitId : commits) {
+            Commit commit = Commit.getCommitFromId(commitId);
+            groupTree(commit.getTreeId(), "", blobs, walked, grouped, byPath);
+        }
+        List<String> untracked = new ArrayList<>();
+        for (String id : blobs) {
+            if (!grouped.contains(id)) {
+                untracked.add(id);
+            }
+        }
+        List<List<String>> groups = new ArrayList<>(byPath.values());
+        for (String id : untracked) {
+            groups.add(Collections.singletonList(id)); // nothing to delta against
+        }
+        return groups;
+    }
+
+    /** Adds the BLOBS below the tree ID (at paths prefixed with PREFIX) to BYPATH,
+     *  skipping blobs already GROUPED and trees already WALKED. */
+    private static void groupTree(String id, String prefix, Set<String> blobs, Set<String> walked,
+                                  Set<String> grouped, Map<String, List<String>> byPath) {
+        if (!walked.add(id)) {
+            return;
+        }
+        Tree tree = Tree.fromId(id);
+        for (Map.Entry<String, String> e : tree.getBlobs().entrySet()) {
+            if (blobs.contains(e.getValue()) && grouped.add(e.getValue())) {
+                byPath.computeIfAbsent(prefix + e.getKey(), k -> new ArrayList<>()).add(e.getValue());
+            }
+        }
+        for (Map.Entry<String, String> e : tree.getTrees().entrySet()) {
+            groupTree(e.getValue(), prefix + e.getKey() + "/", blobs, walked, grouped, byPath);
+        }
+    }
+
+    /** Writes the VERSIONS of one path to WRITER, largest first by their SIZES, each as
+     *  a delta against the most similar of the last WINDOW versions when that is smaller
+     *  than storing it in full. */
+    private static void writeBlobs(List<String> versions, Map<String, Long> sizes, PackWriter writer)
+            throws IOException {
+        List<String> order = new ArrayList<>(versions);
+        order.sort((a, b) -> Long.compare(sizes.get(b), sizes.get(a)));
+        int level = Repository.compressionLevel();
+        Deque<Base> window = new ArrayDeque<>();
+        for (String id : order) {
+            byte[] content = readBlobContent(id);
+            byte[] full = readStoredBlob(id, content, level);
+
+            // Try the recent versions of this path as bases, keeping the smallest delta
+            byte[] best = null;
+            Base bestBase = null;
+            for (Base base : window) {
+                if (base.depth >= MAX_DEPTH) {
+                    continue;
+                }
+                byte[] delta = compress(Delta.create(base.content, content), level);
+                if (best == null || delta.length < best.length) {
+                    best = delta;
+                    bestBase = base;
+                }
+            }
+
+            int depth = 0;
+            String digest = sha1(content);
+            if (best != null && ID_BYTES + COMPRESSED_MAGIC.length + best.length < full.length) {
+                ByteBuffer stored = ByteBuffer.allocate(ID_BYTES + COMPRESSED_MAGIC.length + best.length);
+                stored.put(toBytes(bestBase.id));
+                stored.put(COMPRESSED_MAGIC);
+                stored.put(best);
+                writer.write(id, DELTA, stored.array(), digest);
+                depth = bestBase.depth + 1;
+            } else {
+                writer.write(id, BLOB, full, digest);
+            }
+
+            window.addFirst(new Base(id, content, depth));
+            if (window.size() > WINDOW) {
+                window.removeLast();
+            }
+        }
+    }
+
+    /** Returns the stored bytes of the commit or tree ID (of the given TYPE),
+     *  from its loose file in FOLDER if there is one. */
+    private static byte[] readStored(File folder, byte type, String id) {
+        File loose = findObject(folder, id);
+        if (loose != null) {
+            return readContents(loose);
+        }
+        return type == COMMIT ? readCommit(id) : readTree(id);
+    }
+
+    /** Returns the length of the raw content of blob ID, from its loose file if there is one,
+     *  or BIG_FILE + 1 if that is longer than BIG_FILE. Nothing is read into memory: content is
+     *  counted as it is inflated, up to BIG_FILE + 1 bytes, and the length of a blob stored as
+     *  a delta is read from the delta's header. */
+    private static long contentSize(String id) {
+        try {
+            File loose = findObject(Blob.BLOB_FOLDER, id);
+            if (loose != null) {
+                try (InputStream in = new BufferedInputStream(new FileInputStream(loose))) {
+                    in.mark(COMPRESSED_MAGIC.length);
+                    boolean raw = Blob.isRaw(in.readNBytes(COMPRESSED_MAGIC.length));
+                    in.reset();
+                    return raw ? Math.min(loose.length(), BIG_FILE + 1) : count(Blob.decode(in));
+                }
+            }
+            for (PackFile p : getPacks()) {
+                int pos = p.find(BLOB, id);
+                if (pos >= 0) {
+                    return p.sizeAt(pos);
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        throw error("Missing blob %s.", id);
+    }
+
+    /** Returns the length of the raw content of the blob in record POS, or BIG_FILE + 1
+     *  if that is longer than BIG_FILE, as contentSize does. */
+    private long sizeAt(int pos) throws IOException {
+        if (typeAt(pos) != DELTA) {
+            try (InputStream in = openBlob(idAt(pos))) {
+                return count(in);
+            }
+        }
+        ByteBuffer delta = pack.slice((int) offsetAt(pos) + ID_BYTES, lengthAt(pos) - ID_BYTES);
+        try (InputStream in = Blob.decode(new BufferedInputStream(new ByteBufferInputStream(delta)))) {
+            return Math.min(Delta.targetLength(in.readNBytes(Delta.MAX_HEADER)), BIG_FILE + 1);
+        }
+    }
+
+    /** Returns the number of bytes left in IN, counting no further than BIG_FILE + 1. */
+    private static long count(InputStream in) throws IOException {
+        byte[] buf = new byte[8192];
+        long n = 0;
+        int read;
+        while (n <= BIG_FILE && (read = in.read(buf)) >= 0) {
+            n += read;
+        }
+        return Math.min(n, BIG_FILE + 1);
+    }
+
+    /** Returns the raw content of blob ID, from its loose file if there is one. */
+    private static byte[] readBlobContent(String id) {
+        File loose = findObject(Blob.BLOB_FOLDER, id);
+        if (loose != null) {
+            return Blob.contentOf(readContents(loose));
+        }
+        return readBlob(id);
+    }
+
+    /** Returns the full stored form of blob ID with the given CONTENT: its loose file
+     *  if there is one, and otherwise CONTENT compressed at LEVEL. */
+    private static byte[] readStoredBlob(String id, byte[] content, int level) {
+        File loose = findObject(Blob.BLOB_FOLDER, id);
+        if (loose != null) {
+            return readContents(loose);
+        }
+        ByteArrayOutputStream stored = new ByteArrayOutputStream();
+        stored.write(COMPRESSED_MAGIC, 0, COMPRESSED_MAGIC.length);
+        byte[] compressed = compress(content, level);
+        stored.write(compressed, 0, compressed.length);
+        return stored.toByteArray();
+    }
+
+    /** Deletes the loose objects IDS from the object directory DIR, and the emptied fan-out directories. */
+    private static void deleteLoose(File dir, List<String> ids) {
+        if (ids == null) {
+            return;
+        }
+        for (String id : ids) {
+            File f = findObject(dir, id);
+            if (f != null) {
+                f.delete();
+                f.getParentFile().delete(); // only succeeds once the fan-out directory is empty
+            }
+        }
+    }
+}
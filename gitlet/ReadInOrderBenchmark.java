@@ -0,0 +1,98 @@
+package gitlet;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.TreeMap;
+
+import static gitlet.Utils.*;
+
+/** Benchmark of a scan of every commit: the serial getCommitFromId loop that global-log
+ *  and find used to run, Commit.readInOrder, and global-log itself.
+ *  Run it in an empty directory, which it fills with a linear history of COUNT commits
+ *  (100000 by default), or in one it filled before:
+ *      java -cp <classes> gitlet.ReadInOrderBenchmark [serial|readInOrder|global-log] [COUNT]
+ *  Each mode is timed over WARMUP unmeasured and ITERATIONS measured runs, with the output
+ *  discarded. The repository's commit cache holds a single commit, so that every run reads
+ *  the commits from disk. readInOrder uses a thread per core; pass
+ *  -XX:ActiveProcessorCount=N to the JVM to try other numbers of threads.
+ *
+ *  @author flora
+ */
+public class ReadInOrderBenchmark {
+
+    /** Number of unmeasured runs, to warm up the JIT and the file system cache. */
+    private static final int WARMUP = 3;
+    /** Number of measured runs. */
+    private static final int ITERATIONS = 5;
+
+    public static void main(String[] args) throws IOException {
+        String mode = args.length > 0 ? args[0] : "readInOrder";
+        int count = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+        if (!Repository.GITLET_DIR.exists()) {
+            build(count);
+        }
+        List<String> ids = Commit.allIds();
+        PrintStream out = System.out;
+        setOutput(new PrintStream(OutputStream.nullOutputStream()));
+        double[] times = new double[ITERATIONS];
+        for (int i = -WARMUP; i < ITERATIONS; i++) {
+            long start = System.nanoTime();
+            run(mode, ids);
+            if (i >= 0) {
+                times[i] = (System.nanoTime() - start) / 1e6;
+            }
+        }
+        double mean = Arrays.stream(times).average().orElse(0);
+        double sd = Math.sqrt(Arrays.stream(times).map(t -> (t - mean) * (t - mean)).sum() / (ITERATIONS - 1));
+        out.printf("%s, threads=%d: %.0f +- %.0f ms/op (%d commits)%n", mode,
+                Runtime.getRuntime().availableProcessors(), mean, sd, ids.size());
+    }
+
+    /** Initializes a repository in the working directory and saves COUNT commits in a line. */
+    private static void build(int count) throws IOException {
+        Repository.init();
+        Repository.config(Commit.CACHE_KEY, "1");
+        Commit.reloadConfig();
+        String tree = Tree.write(new TreeMap<>());
+        String parent = readContentsAsString(Repository.HEAD);
+        long time = System.currentTimeMillis();
+        for (int i = 0; i < count; i++) {
+            Commit commit = new Commit("commit " + i, List.of(parent), tree, new Date(time + i * 1000L));
+            commit.saveCommit();
+            parent = commit.getId();
+        }
+        writeContents(Repository.HEAD, parent);
+        writeContents(Repository.Master, parent);
+    }
+
+    /** Reads all commits IDS once, the way MODE says. */
+    private static void run(String mode, List<String> ids) {
+        int[] matches = {0};
+        switch (mode) {
+            case "serial":
+                for (String id : ids) {
+                    if (Commit.getCommitFromId(id).getMessage().equals("x")) {
+                        matches[0]++;
+                    }
+                }
+                break;
+            case "readInOrder":
+                Commit.readInOrder(ids, commit -> {
+                    if (commit.getMessage().equals("x")) {
+                        matches[0]++;
+                    }
+                    return true;
+                });
+                break;
+            case "global-log":
+                Repository.globalLog();
+                break;
+            default:
+                throw error("Unknown mode %s.", mode);
+        }
+    }
+}
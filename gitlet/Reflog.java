@@ -0,0 +1,215 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+import static gitlet.Utils.*;
+
+/** The reflogs: for HEAD and each branch head, a log of every value it has had, so that
+ *  a commit left behind by reset or checkout can still be found. The log of a ref is at
+ *  the same path under LOGS_DIR as the ref is under .gitlet (logs/HEAD, logs/branchHeads/master),
+ *  and is only ever appended to, one fixed-size record per update:
+ *      [old id: 20 bytes][new id: 20 bytes][time: 8 bytes][action: 1 byte][unused: 11 bytes]
+ *      [CRC32 of the preceding 60 bytes: 4 bytes]
+ *  where the old id is all zeros for a ref that did not exist. Records are read back
+ *  newest first, straight from a memory-mapped log; a record that was cut short or
+ *  damaged by a crash fails its checksum and is skipped.
+ *  An entry is appended before the ref itself is written, so a crash in between may leave
+ *  an entry for an update that did not happen; it still names a saved commit.
+ *  gc drops the entries older than EXPIRE_KEY days, and the logs of deleted refs.
+ *
+ *  @author flora
+ */
+public class Reflog {
+
+    /** The directory of the logs in .gitlet/. */
+    public static final File LOGS_DIR = join(Repository.GITLET_DIR, "logs");
+
+    /** Config key of the number of days gc keeps reflog entries for. */
+    public static final String EXPIRE_KEY = "gc.reflogExpire";
+    /** Default number of days gc keeps reflog entries for. */
+    private static final int DEFAULT_EXPIRE_DAYS = 90;
+
+    /** What moved a ref. */
+    public static final byte INIT = 1;
+    public static final byte COMMIT = 2;
+    public static final byte MERGE = 3;
+    public static final byte CHECKOUT = 4;
+    public static final byte RESET = 5;
+    public static final byte BRANCH = 6;
+
+    /** Length of the raw (binary) form of an id. */
+    private static final int ID_BYTES = UID_LENGTH / 2;
+    /** Offsets of the time, the action and the checksum in a record. */
+    private static final int TIME = 2 * ID_BYTES;
+    private static final int ACTION = TIME + 8;
+    private static final int CHECKSUM = 60;
+    /** Length of one record. */
+    private static final int RECORD = CHECKSUM + 4;
+
+    /* Writing */
+
+    /** Appends to the log of REF that it is about to move from its current value to the
+     *  commit NEWID, because of ACTION. */
+    public static void append(File ref, String newId, byte action) {
+        String oldId = ref.exists() ? readContentsAsString(ref) : "";
+        ByteBuffer record = ByteBuffer.allocate(RECORD);
+        record.put(oldId.length() == UID_LENGTH ? toBytes(oldId) : new byte[ID_BYTES]);
+        record.put(toBytes(newId));
+        record.putLong(System.currentTimeMillis());
+        record.put(action);
+        record.putInt(CHECKSUM, checksum(record.array()));
+        File log = logOf(ref);
+        log.getParentFile().mkdirs();
+        try (RandomAccessFile out = new RandomAccessFile(log, "rw")) {
+            // Drop a record cut short by a crash, which would put all later ones out of step
+            long end = out.length() / RECORD * RECORD;
+            out.setLength(end);
+            out.seek(end);
+            out.write(record.array());
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    /** Deletes the log of REF, which is being deleted. */
+    public static void delete(File ref) {
+        logOf(ref).delete();
+    }
+
+    /** Drops the entries older than the EXPIRE_KEY setting, or damaged, from all logs,
+     *  and the logs of refs that no longer exist. */
+    public static void prune() {
+        int days;
+        try {
+            days = Integer.parseInt(Repository.getConfig(EXPIRE_KEY, String.valueOf(DEFAULT_EXPIRE_DAYS)).trim());
+        } catch (NumberFormatException e) {
+            throw error("%s must be a number of days.", EXPIRE_KEY);
+        }
+        long cutoff = System.currentTimeMillis() - days * 24L * 60 * 60 * 1000;
+        prune(LOGS_DIR, cutoff);
+    }
+
+    /** Prunes the logs in DIR and below, keeping the entries made at CUTOFF or later. */
+    private static void prune(File dir, long cutoff) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File log : files) {
+            if (log.isDirectory()) {
+                prune(log, cutoff);
+                continue;
+            }
+            File ref = join(Repository.GITLET_DIR, LOGS_DIR.toPath().relativize(log.toPath()).toString());
+            if (!ref.exists()) {
+                log.delete();
+                continue;
+            }
+            byte[] records = readContents(log);
+            ByteBuffer kept = ByteBuffer.allocate(records.length);
+            ByteBuffer in = ByteBuffer.wrap(records);
+            for (int pos = 0; pos + RECORD <= records.length; pos += RECORD) {
+                if (valid(in, pos) && in.getLong(pos + TIME) >= cutoff) {
+                    kept.put(records, pos, RECORD);
+                }
+            }
+            if (kept.position() != records.length) {
+                writeAtomic(log, Arrays.copyOf(kept.array(), kept.position()));
+            }
+        }
+    }
+
+    /* Reading */
+
+    /** Prints the log of REF, which is called NAME, newest entry first:
+     *  "<abbreviated new id> NAME@{<n>}: <what happened>". */
+    public static void print(File ref, String name) {
+        File log = logOf(ref);
+        if (!log.exists()) {
+            return;
+        }
+        ByteBuffer records = map(log);
+        int n = 0;
+        for (int pos = records.capacity() / RECORD * RECORD - RECORD; pos >= 0; pos -= RECORD) {
+            if (!valid(records, pos)) {
+                continue;
+            }
+            String oldId = id(records, pos);
+            String newId = id(records, pos + ID_BYTES);
+            message("%s %s@{%d}: %s", newId.substring(0, 7), name, n,
+                    describe(records.get(pos + ACTION), oldId, newId));
+            n++;
+            if (n % 64 == 0 && outputClosed()) {
+                return;
+            }
+        }
+    }
+
+    /** Returns what the ACTION that moved a ref from OLDID to NEWID did, in the words of git. */
+    private static String describe(byte action, String oldId, String newId) {
+        switch (action) {
+            case INIT:
+                return "commit (initial): " + messageOf(newId);
+            case COMMIT:
+                return "commit: " + messageOf(newId);
+            case MERGE:
+                return "commit (merge): " + messageOf(newId);
+            case CHECKOUT:
+                return String.format("checkout: moving from %s to %s", oldId.substring(0, 7), newId.substring(0, 7));
+            case RESET:
+                return "reset: moving to " + newId;
+            case BRANCH:
+                return "branch: Created from HEAD";
+            default:
+                return "unknown";
+        }
+    }
+
+    /** Returns the message of the commit ID. */
+    private static String messageOf(String id) {
+        Commit commit = Commit.getCommitFromId(id);
+        return commit == null ? "" : commit.getMessage();
+    }
+
+    /** Returns the file that logs the updates of REF, a file in .gitlet. */
+    private static File logOf(File ref) {
+        return join(LOGS_DIR, Repository.GITLET_DIR.toPath().relativize(ref.toPath()).toString());
+    }
+
+    /** Returns whether the record at POS of RECORDS is intact. */
+    private static boolean valid(ByteBuffer records, int pos) {
+        byte[] record = new byte[RECORD];
+        records.get(pos, record);
+        return ByteBuffer.wrap(record).getInt(CHECKSUM) == checksum(record);
+    }
+
+    /** Returns the CRC32 of the first CHECKSUM bytes of RECORD. */
+    private static int checksum(byte[] record) {
+        CRC32 crc = new CRC32();
+        crc.update(record, 0, CHECKSUM);
+        return (int) crc.getValue();
+    }
+
+    /** Returns the id whose raw form is at POS of RECORDS. */
+    private static String id(ByteBuffer records, int pos) {
+        byte[] raw = new byte[ID_BYTES];
+        records.get(pos, raw);
+        return toHex(raw);
+    }
+
+    /** Maps the whole FILE read-only. */
+    private static ByteBuffer map(File file) {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+}
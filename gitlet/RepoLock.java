@@ -0,0 +1,67 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.StandardOpenOption;
+
+import static gitlet.Utils.*;
+
+/** An advisory lock on the whole repository, so that gitlet processes running
+ *  against the same .gitlet do not interleave their reads and writes of HEAD,
+ *  the branch heads and the staging areas.
+ *  Read-only commands take the lock shared, so any number of them run together;
+ *  commands that change the repository take it exclusively.
+ *  The lock is an OS file lock on LOCK_FILE, held until the process exits or,
+ *  in the daemon, until the command is done (the OS drops it even if the process
+ *  is killed, so it can never go stale).
+ *
+ *  @author flora
+ */
+public class RepoLock {
+
+    /** The lock file in .gitlet/. Its contents are never used. */
+    public static final File LOCK_FILE = join(Repository.GITLET_DIR, "lock");
+
+    private static FileChannel channel;
+    private static FileLock lock;
+    /** Total time (ns) this process spent waiting for the lock. */
+    private static long waitNanos;
+
+    /** Blocks until this process holds the repository lock, shared if SHARED and
+     *  exclusive otherwise. Taking it again replaces the lock held before. */
+    public static synchronized void acquire(boolean shared) {
+        try {
+            if (channel == null) {
+                channel = FileChannel.open(LOCK_FILE.toPath(), StandardOpenOption.CREATE,
+                        StandardOpenOption.READ, StandardOpenOption.WRITE);
+            }
+            if (lock != null) {
+                lock.release(); // a JVM cannot hold two overlapping locks on one file
+            }
+            long start = System.nanoTime();
+            lock = channel.lock(0, Long.MAX_VALUE, shared);
+            waitNanos += System.nanoTime() - start;
+        } catch (IOException e) {
+            throw error("Cannot lock the repository: %s", e.getMessage());
+        }
+    }
+
+    /** Releases the lock, if held, e.g. when the daemon has finished a command. */
+    public static synchronized void release() {
+        try {
+            if (lock != null) {
+                lock.release();
+                lock = null;
+            }
+        } catch (IOException e) {
+            throw error("Cannot unlock the repository: %s", e.getMessage());
+        }
+    }
+
+    /** Returns the total time, in nanoseconds, spent waiting for the lock. */
+    public static synchronized long waitNanos() {
+        return waitNanos;
+    }
+}
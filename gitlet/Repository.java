@@ -3,8 +3,19 @@ package gitlet;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.file.FileSystems;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import java.util.stream.Collectors;
+import java.util.zip.Deflater;
 
 import static gitlet.Utils.*;
 import static gitlet.Utils.plainFilenamesIn;
@@ -12,14 +23,25 @@ import static gitlet.Utils.plainFilenamesIn;
 /** Represents a gitlet repository.
  *  File structure is as follows (flattened and simplified compared with .git):
  *  .gitlet
- *      |--commits/
- *      |--blobs/
+ *      |--commits/           # fanned out by id: commits/ab/cdef...
+ *      |--trees/             # one per directory of a commit, fanned out by id
+ *      |--blobs/             # fanned out by id: blobs/ab/cdef...
+ *      |--packs/             # objects consolidated by gc: pack-<sha>.pack + pack-<sha>.idx
  *      |--branchHeads/
  *      |    |--Master        # Master branch
  *      |    |--anotherBranch # some other branches
  *      |--HEAD
  *      |--add                # staged addition
  *      |--rm                 # staged removal
+ *      |--index              # stat data and blob id of working files (see Index)
+ *      |--commit-index       # sorted ids of all commits, plus -tail, to resolve abbreviated ids (see CommitIndex)
+ *      |--commit-graph       # parents and generation numbers of all commits, plus -tail (see CommitGraph)
+ *      |--messages           # message of every commit, plus message-index to search them (see MessageIndex)
+ *      |--journal            # pending multi-file update, only while one is in progress (see Journal)
+ *      |--lock               # held by every running command, shared or exclusive (see RepoLock)
+ *      |--daemon.sock        # socket of the running daemon, if any (see Daemon)
+ *      |--logs/              # reflogs of HEAD and the branch heads: logs/HEAD, logs/branchHeads/... (see Reflog)
+ *      |--config             # per-repository settings (key=value)
  *  Abstraction principle: Involve only communications between Objects and avoid lower map/hash/pointer operations
  *  @author flora
  */
@@ -47,6 +69,15 @@ public class Repository {
 
     private static final File curBranchName = join(GITLET_DIR, "curBranch");
 
+    /** Per-repository settings, saved as key=value lines. */
+    public static final File CONFIG_FILE = join(GITLET_DIR, "config");
+    /** Config key of the zlib level (0-9, or -1 for the zlib default) for stored blobs and commits.
+     *  0 stores them uncompressed. */
+    public static final String COMPRESSION_KEY = "core.compression";
+
+    /** Settings read from CONFIG_FILE, loaded on first use. */
+    private static Properties config;
+
 
     /* Commands */
 
@@ -62,7 +93,7 @@ public class Repository {
         StagingArea Rm = new StagingArea("Rm", RM_FILE);
         Rm.saveStage(RM_FILE);
 
-        writeContents(curBranchName, "master");
+        writeAtomic(curBranchName, "master");
     }
 
     /** Initialize .gitlet repository in the current directory. */
@@ -76,40 +107,116 @@ public class Repository {
         System.getProperty("user.dir");
         // 1. Create dirs and files
         initDirs();
+        PackFile.reload(); // forget the packs of a repository that was here before
 
         // 2. Create and save the first Commit
-        Commit firstCommit = new Commit("initial commit", null, new TreeMap<>(), new Date(0));
+        Commit firstCommit = new Commit("initial commit", null, Tree.write(new TreeMap<>()), new Date(0));
         firstCommit.saveCommit();
 
         // 3. Initialize HEAD and master pointers
-        updatePointerTo(HEAD, firstCommit); // designate HEAD -> initCommit
-        updatePointerTo(Master, firstCommit); // designate Master -> initCommit
+        updatePointerTo(HEAD, firstCommit, Reflog.INIT); // designate HEAD -> initCommit
+        updatePointerTo(Master, firstCommit, Reflog.INIT); // designate Master -> initCommit
     }
 
-    /** Given the plain name of a file,
-     *  if the file has been changed, add a mapping to the staging area.
-     *  @implNote The mapping is represented as {"plainName": "reference to the file's Blob hash"}.
+    /** Given paths of files, directories or glob patterns (relative to the working directory),
+     *  for each matched file that has been changed, add a mapping to the staging area.
+     *  Directories are added recursively. All paths are resolved before anything is staged;
+     *  the files are then hashed and stored in parallel, and staged in one batch.
+     *  @implNote The mapping is represented as {"plainName": "reference to the file's Blob hash"},
+     *  where the plain name of a file in a subdirectory is its '/'-separated relative path.
      *
-     *  @param plainName Plain name of the file. E.g. Hello.txt */
-    public static void add(String plainName) {
-        File curFile = join(CWD, plainName);
-        if (!curFile.exists()) {
-            message("File does not exist.");
-            System.exit(0);
-        }
-        // Read in the file as a Blob
-        Blob curBlob = new Blob(curFile, plainName); // the file's cur blob
-        curBlob.saveBlob();
-
-        // Compare the [current Blob] and the [Blob of the HEAD Commit] of the same plainName
+     *  @param paths Paths of the files. E.g. Hello.txt, src/, "*.txt" */
+    public static void add(String... paths) {
+        List<String> plainNames = expandPaths(paths);
         Commit curHead = getPointer(HEAD);
-        Blob headBlob = curHead.get(plainName); // the file's blob in HEAD commit
-        // If this id does not match the id of the same file in the HEAD (i.e. cur) commit
+        // Hash and store every file on the fork-join pool, keeping the order of the names.
+        // Files whose stat data matches the index are already stored and are not read again.
+        compressionLevel(); // load the config before the workers need it
+        Index index = Index.load();
+        List<Blob> blobs = plainNames.parallelStream()
+                .map(plainName -> {
+                    String cached = index.cachedId(plainName);
+                    if (cached != null && Blob.exists(cached)) {
+                        return Blob.fromId(cached);
+                    }
+                    Blob blob = Blob.store(join(CWD, plainName));
+                    index.record(plainName, blob.getId());
+                    return blob;
+                })
+                .collect(Collectors.toList());
+
+        StagingArea Add = getStage(ADD_FILE).batch();
+        StagingArea Rm = getStage(RM_FILE).batch();
+        for (int i = 0; i < plainNames.size(); i++) {
+            stage(plainNames.get(i), blobs.get(i), curHead, Add, Rm);
+        }
+        Add.flush();
+        Rm.flush();
+        index.save();
+    }
+
+    /** Returns the plain names of all files matched by PATHS, sorted and without duplicates.
+     *  A path naming a directory matches all files below it, and a path containing
+     *  glob characters matches the files whose relative path matches it.
+     *  Exits if a path matches nothing. */
+    private static List<String> expandPaths(String... paths) {
+        Set<String> plainNames = new TreeSet<>();
+        List<String> allFiles = null; // the working tree, listed once if a glob needs it
+        for (String path : paths) {
+            String name = CWD.toPath().relativize(join(CWD, path).toPath().normalize()).toString()
+                    .replace(File.separatorChar, '/');
+            File file = join(CWD, name);
+            if (name.startsWith("..") || name.equals(".gitlet") || name.startsWith(".gitlet/")) {
+                throw error("File does not exist."); // outside the working tree
+            } else if (file.isFile()) {
+                plainNames.add(name);
+            } else if (file.isDirectory()) {
+                for (String sub : WorkingTree.filesIn(file)) {
+                    plainNames.add(name.isEmpty() ? sub : name + "/" + sub);
+                }
+            } else if (isGlob(path)) {
+                if (allFiles == null) {
+                    allFiles = WorkingTree.filesIn(CWD);
+                }
+                PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + path);
+                int before = plainNames.size();
+                for (String candidate : allFiles) {
+                    if (matcher.matches(Paths.get(candidate))) {
+                        plainNames.add(candidate);
+                    }
+                }
+                if (plainNames.size() == before) {
+                    throw error("File does not exist.");
+                }
+            } else {
+                throw error("File does not exist.");
+            }
+        }
+        return new ArrayList<>(plainNames);
+    }
+
+    /** Returns true if PATH contains glob special characters. */
+    private static boolean isGlob(String path) {
+        return path.indexOf('*') >= 0 || path.indexOf('?') >= 0
+                || path.indexOf('[') >= 0 || path.indexOf('{') >= 0;
+    }
+
+    /** Stages the file PLAINNAME in the working directory for addition into ADD
+     *  if it differs from its version in CURHEAD, or else unstages its removal from RM. */
+    private static void stage(String plainName, Commit curHead, StagingArea Add, StagingArea Rm) {
+        // Stream the file into a Blob (hashed and saved in one pass)
+        stage(plainName, Blob.store(join(CWD, plainName)), curHead, Add, Rm);
+    }
+
+    /** Stages CURBLOB, the stored content of PLAINNAME, like stage(plainName, curHead, Add, Rm). */
+    private static void stage(String plainName, Blob curBlob, Commit curHead, StagingArea Add, StagingArea Rm) {
+        // Compare the [current Blob] and the [Blob of the HEAD Commit] of the same plainName (ids only)
+        String headBlobId = curHead.getBlobId(plainName); // the file's blob in HEAD commit
+        // If this content does not match that of the same file in the HEAD (i.e. cur) commit
         //    || there is no such file in the HEAD commit,
         // -> the file is changed || newly added, update the mapping
-        StagingArea Add = getStage(ADD_FILE);
-        StagingArea Rm = getStage(RM_FILE);
-        if (headBlob == null || !curBlob.compareTo(headBlob)) {
+        // (HEAD may hold an old-format id, which differs from the content id even for the same content)
+        if (headBlobId == null || !Blob.sameContent(curBlob.getId(), headBlobId)) {
             // Add the new mapping to staging area for addition (Add)
             Add.put(plainName, curBlob);
         } else {
@@ -125,38 +232,58 @@ public class Repository {
      */
     public static Commit commit(String message) {
         if (message.equals("")) {
-            message("Please enter a commit message.");
-            System.exit(0);
-        }
-        StagingArea Add = getStage(ADD_FILE);
-        StagingArea Rm = getStage(RM_FILE);
+            throw error("Please enter a commit message.");
+        }
+        StagingArea Add = getStage(ADD_FILE).batch();
+        StagingArea Rm = getStage(RM_FILE).batch();
+        // The new pointers and the cleaned areas are written as one transaction
+        Journal journal = new Journal();
+        Commit curCommit = commit(message, null, Add, Rm, journal);
+        Add.flush(journal);
+        Rm.flush(journal);
+        journal.commit();
+        return curCommit;
+    }
 
+    /** Commits the changes staged in ADD and RM with MESSAGE, and cleans both areas.
+     *  SECONDPARENT is the merged-in Commit of a merge commit, or null.
+     *  The Commit is complete (and its id final) before it is saved, once.
+     *  The pointer updates are recorded in JOURNAL, and the areas are only written
+     *  when the caller flushes them; nothing changes until the caller commits the journal. */
+    private static Commit commit(String message, Commit secondParent, StagingArea Add, StagingArea Rm,
+                                 Journal journal) {
         // Failure cases: if no file has been staged
         if (Add.size() == 0 && Rm.size() == 0) {
-            message("No changes added to the commit.");
-            System.exit(0);
+            throw error("No changes added to the commit.");
         }
 
         // Clone the parent Commit and update meta data
         Commit parentCommit = getPointer(HEAD);
         List<String> parents = new ArrayList<>();
         parents.add(parentCommit.getId());
-        Commit curCommit = new Commit(message, parents, parentCommit.getMap(), new Date()); // receives a copy of parent's map
+        if (secondParent != null) {
+            parents.add(secondParent.getId());
+        }
 
         /** @implNote:
          * Rm records files once `staged` and just deleted from the WD.
          * The files are no longer in the WD, but are not yet updated in the Commit mappings.
          */
 
-        // Update current Commit according to staged addition and removal
-        curCommit.updateCommitMapTo(Add);
-        curCommit.updateCommitMapTo(Rm);
-
+        // Apply the staged addition and removal to the parent's tree, before the Commit (and its id) is made.
+        // Only the directories containing changes get new trees; the rest are shared with the parent.
+        TreeMap<String, String> changes = Add.getAreaMap();
+        for (String plainName : Rm.nameSet()) {
+            changes.put(plainName, null);
+        }
+        String treeId = Tree.update(parentCommit.getTreeId(), changes);
+        Commit curCommit = new Commit(message, parents, treeId, new Date());
         curCommit.saveCommit();
 
         // Update HEAD and curBranchHead pointers
-        updatePointerTo(HEAD, curCommit);
-        updatePointerTo(join(BRANCH_DIR, readContentsAsString(curBranchName)), curCommit);
+        byte action = secondParent == null ? Reflog.COMMIT : Reflog.MERGE;
+        updatePointerTo(HEAD, curCommit, action, journal);
+        updatePointerTo(join(BRANCH_DIR, readContentsAsString(curBranchName)), curCommit, action, journal);
 
         // Clean the staging area (Add && Rm)
         Add.clean();
@@ -175,16 +302,22 @@ public class Repository {
      */
     public static void rm(String plainName) {
         Commit head = getPointer(HEAD);
-        StagingArea Add = getStage(ADD_FILE);
-        StagingArea Rm = getStage(RM_FILE);
+        StagingArea Add = getStage(ADD_FILE).batch();
+        StagingArea Rm = getStage(RM_FILE).batch();
+        rm(plainName, head, Add, Rm);
+        Add.flush();
+        Rm.flush();
+    }
 
+    /** Unstages PLAINNAME from ADD and, if it is tracked in HEAD,
+     *  stages it in RM and removes it from the working directory. */
+    private static void rm(String plainName, Commit head, StagingArea Add, StagingArea Rm) {
         boolean isStaged = Add.containsFile(plainName); // staged in Add or not
         boolean isTracked = head.containsFile(plainName); // tracked or not
 
         // Failure cases: if the file is neither `staged` nor `tracked`
         if (!isStaged && !isTracked) {
-            message("No reason to remove the file.");
-            System.exit(0);
+            throw error("No reason to remove the file.");
         }
 
         if (isStaged) {
@@ -196,7 +329,6 @@ public class Repository {
         // remove it from the working directory
         if (isTracked) {
             Blob blob = head.get(plainName);
-            // Blob curBlob = new Blob(join(CWD, plainName), plainName);
             Rm.put(plainName, blob);
             if (join(CWD, plainName).exists()) {
                 join(CWD, plainName).delete(); // abs path of the file to be deleted
@@ -212,28 +344,46 @@ public class Repository {
      *  c.f. `git log --first-parent`
      */
     public static void log() {
+        log(Integer.MAX_VALUE, 0, null);
+    }
+
+    /** Like log(), but prints at most MAXCOUNT commits, after skipping the first SKIP,
+     *  and stops at the first commit older than SINCE (if not null).
+     *  Commits are read one at a time as the walk reaches them, and the walk stops as soon
+     *  as the output is closed (as in `log | head`). */
+    public static void log(int maxCount, int skip, Date since) {
         // util
         SimpleDateFormat sdf = new SimpleDateFormat("EEE MMM d HH:mm:ss yyyy Z", new Locale("en", "US"));
 
-        Commit curCommit = getPointer(HEAD); // starting from HEAD, walking backwards
-        while (curCommit != null) {
+        // Starting from HEAD; skipped commits are stepped over on the commit-graph without being read.
+        // (Were one of them older than SINCE, so would be every commit after it.)
+        String start = CommitGraph.firstParentAncestor(readContentsAsString(HEAD), skip);
+        Iterator<Commit> history = Commit.firstParents(start);
+        for (int printed = 0; printed < maxCount && history.hasNext(); ) {
+            Commit curCommit = history.next();
+            if (since != null && curCommit.getTimestamp().before(since)) {
+                break; // each commit is newer than its first parent, so no later one qualifies
+            }
             // For each Commit, print out log info
             printCommitInfo(curCommit, sdf);
-            curCommit = curCommit.getParent() == null ? null : curCommit.getParent().get(0); // first parent
+            printed++;
+            if (printed % 64 == 0 && outputClosed()) {
+                break;
+            }
         }
-
     }
 
     /** Displays information about all commits ever made. */
     public static void globalLog() {
         SimpleDateFormat sdf = new SimpleDateFormat("EEE MMM d HH:mm:ss yyyy Z", new Locale("en", "US"));
-        List<String> fileIds = plainFilenamesIn(Commit.COMMIT_FOLDER);
-        assert fileIds != null;
-        for (String id : fileIds) {
+        List<String> fileIds = Commit.allIds();
+        // Commits are decoded in parallel but printed in the order of their ids, as before
+        int[] printed = {0};
+        Commit.readInOrder(fileIds, curCommit -> {
             // For each Commit, print out its log info
-            Commit curCommit = Commit.getCommitFromId(id);
             printCommitInfo(curCommit, sdf);
-        }
+            return ++printed[0] % 64 != 0 || !outputClosed();
+        });
     }
 
     /**
@@ -241,37 +391,80 @@ public class Repository {
      * @param message Commit message.
      */
     public static void find(String message) {
-        // Get the full list of commit ids
-        List<String> fileIds = plainFilenamesIn(Commit.COMMIT_FOLDER);
-        assert fileIds != null;
-        // For each Commit, if its message == given message
-        // Print out its id
-        boolean found = false;
-        for (String id : fileIds) {
-            Commit curCommit = Commit.getCommitFromId(id);
-            if (message.equals(curCommit.getMessage())) {
-                found = true;
-                message(id);
-            }
+        SortedSet<String> ids = MessageIndex.exact(message);
+        printFound(ids != null ? ids : findByScan(message::equals));
+    }
+
+    /** Prints out the ids of all commits whose message contains TEXT. */
+    public static void findContaining(String text) {
+        SortedSet<String> ids = MessageIndex.containing(text);
+        printFound(ids != null ? ids : findByScan(msg -> msg.contains(text)));
+    }
+
+    /** Prints out the ids of all commits with a message in which the regular expression REGEX is found. */
+    public static void findMatching(String regex) {
+        Pattern pattern;
+        try {
+            pattern = Pattern.compile(regex);
+        } catch (PatternSyntaxException e) {
+            throw error("Incorrect operands.");
         }
-        if (!found) {
+        SortedSet<String> ids = MessageIndex.matching(pattern);
+        printFound(ids != null ? ids : findByScan(msg -> pattern.matcher(msg).find()));
+    }
+
+    /** Returns the ids of all commits whose message passes TEST, reading every commit;
+     *  for repositories whose message index has not been built yet. */
+    private static List<String> findByScan(Predicate<String> test) {
+        // For each Commit, if its message passes the test, keep its id
+        List<String> found = new ArrayList<>();
+        Commit.readInOrder(Commit.allIds(), curCommit -> {
+            if (test.test(curCommit.getMessage())) {
+                found.add(curCommit.getId());
+            }
+            return true;
+        });
+        return found;
+    }
+
+    /** Prints out the commit IDS, one per line. */
+    private static void printFound(Collection<String> ids) {
+        if (ids.isEmpty()) {
             message("Found no commit with that message.");
         }
+        for (String id : ids) {
+            message(id);
+        }
+    }
+
+    /** Prints the reflog of the branch BRANCHNAME, or of HEAD if BRANCHNAME is null, newest entry first. */
+    public static void reflog(String branchName) {
+        if (!GITLET_DIR.exists()) {
+            throw error("Not in an initialized Gitlet directory.");
+        }
+        if (branchName == null) {
+            Reflog.print(HEAD, "HEAD");
+        } else if (!join(BRANCH_DIR, branchName).exists()) {
+            throw error("A branch with that name does not exist.");
+        } else {
+            Reflog.print(join(BRANCH_DIR, branchName), branchName);
+        }
     }
 
     /** Displays what branches currently exist, and marks the current branch with a *. */
     public static void status() {
         // FC
         if (!GITLET_DIR.exists()) {
-            message("Not in an initialized Gitlet directory");
-            System.exit(0);
+            throw error("Not in an initialized Gitlet directory");
         }
         // Print all branches, with current branch marked with a *
         message("=== Branches ===");
         List<String> branches = plainFilenamesIn(BRANCH_DIR);
         if (branches != null) {
-            Commit head = getPointer(HEAD);
             for (String branchName : branches) {
+                if (isTempFile(branchName)) {
+                    continue; // left by a branch update interrupted by a crash
+                }
                 // For each branch, print out its name,
                 // and marks the current branch with a *.
                 message(branchName.equals(readContentsAsString(curBranchName)) ? "*" + branchName : branchName);
@@ -301,10 +494,49 @@ public class Repository {
         }
         message("");
 
+        // Compare the working tree with HEAD and the staging areas
+        Commit head = getPointer(HEAD);
+        List<String> files = WorkingTree.filesIn(CWD);
+        Set<String> present = new HashSet<>(files);
+        // Only tracked or staged files need their content; the index spares reading unchanged ones
+        Index index = Index.load();
+        Map<String, String> workingIds = new ConcurrentHashMap<>();
+        files.parallelStream()
+                .filter(f -> (head.containsFile(f) && !Rm.containsFile(f)) || Add.containsFile(f))
+                .forEach(f -> {
+                    String id = index.blobIdOf(f);
+                    if (id != null) {
+                        workingIds.put(f, id);
+                    }
+                });
+        index.save();
+
         message("=== Modifications Not Staged For Commit ===");
+        Set<String> names = new TreeSet<>(head.nameSet());
+        names.addAll(addFiles);
+        for (String f : names) {
+            String stagedId = Add.containsFile(f) ? Add.getBlobId(f) : head.getBlobId(f);
+            if (!present.contains(f)) {
+                // deleted from the working tree, but staged for addition or tracked and not staged for removal
+                if (Add.containsFile(f) || !Rm.containsFile(f)) {
+                    message(f + " (deleted)");
+                }
+            } else if (!Rm.containsFile(f) && workingIds.containsKey(f)
+                    && !Blob.sameContent(workingIds.get(f), stagedId)) {
+                // changed in the working tree since it was committed or staged; a file staged for
+                // removal is listed as untracked instead
+                message(f + " (modified)");
+            }
+        }
         message("");
 
         message("=== Untracked Files ===");
+        for (String f : files) {
+            // present, but neither staged for addition nor tracked (or staged for removal)
+            if (!Add.containsFile(f) && (!head.containsFile(f) || Rm.containsFile(f))) {
+                message(f);
+            }
+        }
         message("");
     }
 
@@ -319,8 +551,7 @@ public class Repository {
      *    java gitlet.Main checkout [branch name] */
     public static void checkoutHeadFile(String plainName, String operand) {
         if (!operand.equals("--")) {
-            message("Incorrect operands.");
-            System.exit(0);
+            throw error("Incorrect operands.");
         }
         // Get head Commit
         Commit head = getPointer(HEAD);
@@ -332,21 +563,18 @@ public class Repository {
         }
         else {
             // Failure case:file does not exist
-            message("File does not exist in that commit.");
-            System.exit(0);
+            throw error("File does not exist in that commit.");
         }
     }
     public static void checkoutSpecifiedFile(String commitId, String plainName, String operand) {
         if (!operand.equals("--")) {
-            message("Incorrect operands.");
-            System.exit(0);
+            throw error("Incorrect operands.");
         }
         // 1. Get specified Commit
         Commit commit = Commit.getCommitFromId(commitId);
         if (commit == null) {
             // Failure case: commit does not exist
-            message("No commit with that id exists.");
-            System.exit(0);
+            throw error("No commit with that id exists.");
         }
 
         // 2. Get the file's blob (content)
@@ -357,8 +585,7 @@ public class Repository {
         }
         else {
             // Failure case:file does not exist
-            message("File does not exist in that commit.");
-            System.exit(0);
+            throw error("File does not exist in that commit.");
         }
     }
     public static void checkoutBranch(String branchName) throws IOException {
@@ -372,55 +599,30 @@ public class Repository {
             return;
         } else if (branchName.equals(readContentsAsString(curBranchName))) {
             // 2. the checked out branch is the current branch
-            message("No need to checkout the current branch.");
-            System.exit(0);
+            throw error("No need to checkout the current branch.");
         } else if (hasUntrackedFile(head, getPointer(branchPath))) {
             // 3. if a working file is untracked in the current branch and would be overwritten by the checkout
-            message("There is an untracked file in the way; delete it, or add and commit it first.");
-            System.exit(0);
+            throw error("There is an untracked file in the way; delete it, or add and commit it first.");
         }
 
-        // Get branch head Commit's id -> commitId
+        // Update the working files from HEAD to the branch head Commit
         Commit branchHead = getPointer(branchPath);
-        String commitId = branchHead.getId();
-
-        /* There are 3 kinds of situations: */
-        // for ALL files in curHead and checkoutBranchHead
-        Set<String> names = new HashSet<>();
-        names.addAll(head.nameSet());
-        names.addAll(branchHead.nameSet());
-
-        // Iterate over files in CWD
-        for (String plainName : names) {
-            // 1) the file is tracked in curBranch as well as checked-out branch -> replace the Blob
-            if (head.containsFile(plainName) && branchHead.containsFile(plainName)) {
-                // Call checkoutSpecifiedFile(commitId, plainName) on the file
-                checkoutSpecifiedFile(commitId, plainName, "--");
-            }
-            // 2) the file is not tracked in the checkedout branch, but only curBranch -> delete the file
-            else if (head.containsFile(plainName) && !branchHead.containsFile(plainName)) {
-                File f = join(CWD, plainName);
-                restrictedDelete(f);
-            }
-            // 3) the file is tracked in the checkedout branch, but not in curBranch -> write the f to cwd
-            else if (!head.containsFile(plainName) && branchHead.containsFile(plainName)) {
-                File f = join(CWD, plainName);
-                Blob content = branchHead.get(plainName);
-                content.writeContentToFile(f);
-                f.createNewFile();
-            }
-        }
+        checkoutFiles(head, branchHead);
 
-        // Set Head to point to the Commit of this branchHead
-        updatePointerTo(HEAD, branchHead);
-        writeContents(curBranchName, branchName); // update current branch name
+        // Set Head to point to the Commit of this branchHead, as one transaction with the rest
+        Journal journal = new Journal();
+        updatePointerTo(HEAD, branchHead, Reflog.CHECKOUT, journal);
+        journal.write(curBranchName, branchName); // update current branch name
 
         // If branchName != the current branch (i.e. if it's checking out to another branch),
         // Clear the staging area.
-        StagingArea Add = getStage(ADD_FILE);
-        StagingArea Rm = getStage(RM_FILE);
+        StagingArea Add = getStage(ADD_FILE).batch();
+        StagingArea Rm = getStage(RM_FILE).batch();
         Add.clean();
         Rm.clean();
+        Add.flush(journal);
+        Rm.flush(journal);
+        journal.commit();
     }
 
 
@@ -432,13 +634,13 @@ public class Repository {
         // Failure case: branch name already exists
         if (newBranch.exists()) {
             message("A branch with that name already exists.");
-        } else {
-            newBranch.createNewFile();
+            return;
         }
+        newBranch.createNewFile();
 
         // Point it at the cur HEAD Commit
         Commit headCommit = getPointer(HEAD);
-        updatePointerTo(newBranch, headCommit);
+        updatePointerTo(newBranch, headCommit, Reflog.BRANCH);
     }
 
     /** Deletes the branch with the given name.
@@ -448,12 +650,16 @@ public class Repository {
         if (!branchPath.exists()) {
             // Failure case 1: branch with the given name does not exist
             message("A branch with that name does not exist.");
-        } else if (branchName.equals(readContentsAsString(curBranchName))) {
+            return;
+        }
+        if (branchName.equals(readContentsAsString(curBranchName))) {
             // Failure case 2: trying to remove the current branch
             message("Cannot remove the current branch.");
+            return;
         }
 
-       branchPath.delete();
+        branchPath.delete();
+        Reflog.delete(branchPath);
     }
 
     /** Checks out all the files tracked by the given commit.
@@ -461,51 +667,33 @@ public class Repository {
      *  as in git reset --hard [commit hash].*/
     public static void reset(String commitId) throws IOException {
         // Failure case: No commit with that id exists
-        File commitFile = join(Commit.COMMIT_FOLDER, commitId);
-        if (!commitFile.exists()) {
-            message("No commit with that id exists.");
-            System.exit(0);
+        Commit newHead = Commit.getCommitFromId(commitId);
+        if (newHead == null) {
+            throw error("No commit with that id exists.");
         }
 
-        Commit newHead = Commit.getCommitFromId(commitId);
         Commit head = getPointer(HEAD); // current HEAD
         if (hasUntrackedFile(head, newHead)) {
             // 3. if a working file is untracked in the current branch and would be overwritten by the checkout
-            message("There is an untracked file in the way; delete it, or add and commit it first.");
-            System.exit(0);
+            throw error("There is an untracked file in the way; delete it, or add and commit it first.");
         }
 
-        /* Update files in CWD to the given Commit. There are 3 kinds of situations: */
+        // Update files in CWD to the given Commit
+        checkoutFiles(head, newHead);
 
-        // Iterate over files in CWD
-        for (String plainName : Objects.requireNonNull(plainFilenamesIn(CWD))) {
-            // 1) the file is tracked in curBranch as well as checked-out branch -> replace the Blob
-            if (head.containsFile(plainName) && newHead.containsFile(plainName)) {
-                // Call checkoutSpecifiedFile(commitId, plainName) on the file
-                checkoutSpecifiedFile(commitId, plainName, "--");
-            }
-            // 2) the file is not tracked in the checkedout branch, but only curBranch -> delete the file
-            else if (head.containsFile(plainName) && !newHead.containsFile(plainName)) {
-                File f = join(CWD, plainName);
-                restrictedDelete(f);
-            }
-            // 3) the file is tracked in the checkedout branch, but not in curBranch -> write the f to cwd
-            else if (!head.containsFile(plainName) && newHead.containsFile(plainName)) {
-                File f = join(CWD, plainName);
-                Blob content = newHead.get(plainName);
-                content.writeContentToFile(f);
-                f.createNewFile();
-            }
-        }
-        // Update the HEAD pointer and current branch head
-        updatePointerTo(HEAD, newHead);
-        updatePointerTo(join(BRANCH_DIR, readContentsAsString(curBranchName)), newHead);
+        // Update the HEAD pointer and current branch head, as one transaction with the rest
+        Journal journal = new Journal();
+        updatePointerTo(HEAD, newHead, Reflog.RESET, journal);
+        updatePointerTo(join(BRANCH_DIR, readContentsAsString(curBranchName)), newHead, Reflog.RESET, journal);
 
         // Clean the staging area
-        StagingArea Add = getStage(ADD_FILE);
-        StagingArea Rm = getStage(RM_FILE);
+        StagingArea Add = getStage(ADD_FILE).batch();
+        StagingArea Rm = getStage(RM_FILE).batch();
         Add.clean();
         Rm.clean();
+        Add.flush(journal);
+        Rm.flush(journal);
+        journal.commit();
     }
 
 
@@ -520,83 +708,65 @@ public class Repository {
         StagingArea Add = getStage(ADD_FILE);
         StagingArea Rm = getStage(RM_FILE);
         if (Add.size() != 0 || Rm.size() != 0) {
-            message("You have uncommitted changes.");
-            System.exit(0);
+            throw error("You have uncommitted changes.");
         }
         // FC2: If other branch does not exist, exit with error message
         if (!branchpath.exists()) {
-            message("A branch with that name does not exist.");
-            System.exit(0);
+            throw error("A branch with that name does not exist.");
         }
         // FC3: merge with itself
         if (otherBranchName.equals(readContentsAsString(curBranchName))) {
-            message("Cannot merge a branch with itself.");
-            System.exit(0);
+            throw error("Cannot merge a branch with itself.");
         }
         Commit otherHead = getPointer(branchpath);
         Commit curHead = getPointer(HEAD);
         // FC4: untracked files
         if (hasUntrackedFile(curHead, otherHead)) {
-            message("There is an untracked file in the way; delete it, or add and commit it first.");
-            System.exit(0);
-        }
-
-        /* 1. Identify the split point (LCA problem) --> Breadth-First Search */
-        // Init variables for BFS
-        Map<String, Integer> curMap = bfs(curHead);
-        Map<String, Integer> otherMap = bfs(otherHead);
-
-        // Iterate over curMap to find minimum depth
-        int minDepth = Integer.MAX_VALUE;
-        String splitId = "";
-        for (String id : curMap.keySet()) {
-            if (otherMap.containsKey(id)) {
-                if ((curMap.get(id) <= minDepth)) {
-                    splitId = id;
-                    minDepth = curMap.get(id);
-                }
-            }
+            throw error("There is an untracked file in the way; delete it, or add and commit it first.");
         }
-        Commit split = Commit.getCommitFromId(splitId); // GET!
+
+        /* 1. Identify the split point (LCA problem) on the commit-graph, without reading commits */
+        Commit split = Commit.getCommitFromId(CommitGraph.mergeBase(curHead.getId(), otherHead.getId()));
         checkSplit(split, curHead, otherBranchName);
 
         /* 2. Update files */
-        // Create a map for each Commit's mapping, and a map for all mappings
-        Map<String, String> allM = new TreeMap<>();    // all blobs in the 3 Commits
-        Map<String, String> splitM = split.getMap();  // blobs in split Commit
-        Map<String, String> curM = curHead.getMap();    // blobs in curHead
-        Map<String, String> otherM = otherHead.getMap();  // blobs in otherHead
-        allM.putAll(splitM);
-        allM.putAll(curM);
-        allM.putAll(otherM);
-        // Iterate through all file plain names
+        // Only files changed on either side since the split point can need anything done;
+        // directories unchanged on both sides are skipped by comparing tree ids
+        Set<String> allM = new TreeSet<>(split.changedFiles(curHead));
+        allM.addAll(split.changedFiles(otherHead));
+        // Stage all changes in memory and write the staging areas once at the end
+        Add.batch();
+        Rm.batch();
+        // Iterate through all changed file plain names
         boolean conflicted = false;
-        for (String fn : allM.keySet()) {
-            boolean inSplit = splitM.containsKey(fn);
-            boolean otherModified = modified(fn, splitM, otherM);
-            boolean curModified = modified(fn, splitM, curM);
+        for (String fn : allM) {
+            String baseId = split.getBlobId(fn);
+            String curId = curHead.getBlobId(fn);
+            String otherId = otherHead.getBlobId(fn);
+            boolean inSplit = baseId != null;
+            // Contents are compared rather than ids, which differ for blobs in the old format
+            boolean otherModified = !Blob.sameContent(baseId, otherId);
+            boolean curModified = !Blob.sameContent(baseId, curId);
             // 现在问题：点太快就会出现bug
             // a. in SPLIT && modified in otherHead && not in curHead -> update to otherHead
-            if (inSplit && !otherM.containsKey(fn) && !curModified) {
+            if (inSplit && otherId == null && !curModified) {
                 // g. in SPLIT && unmodified in curHead && absent in otherHead -> remove (rm) file
-                rm(fn);
-            } else if (inSplit && !curM.containsKey(fn) && !otherModified) {
+                rm(fn, curHead, Add, Rm);
+            } else if (inSplit && curId == null && !otherModified) {
                 // h. in SPLIT && unmodified in otherHead && absent in curHead -> remain removed
                 continue;
             } else if (inSplit && !curModified && otherModified) {
                 // update file in CWD to otherHead
                 Blob newBlob = otherHead.get(fn);
                 newBlob.writeContentToFile(join(CWD, fn));
-                add(fn);
+                stage(fn, curHead, Add, Rm);
             } else if (inSplit && curModified && !otherModified) {
                 // b. in SPLIT && modified in curHead && not in otherHead -> keep to curHead
                 continue;
             } else if (inSplit && curModified && otherModified) {
                 // c. in SPLIT && mod in curHead && mod in otherHead (same way) -> remain the same
                 // d. in SPLIT && mod in curHead && mod in otherHead (diff ways) -> CONFLICT!
-                if (curHead.get(fn) != null
-                        && split.get(fn) != null
-                        && !curHead.get(fn).compareTo(split.get(fn))) {
+                if (!Blob.sameContent(curId, otherId)) {
                     conflicted = true;
 
                     Blob curBlob = curHead.get(fn);
@@ -606,9 +776,7 @@ public class Repository {
                     // write content str into file
                     File tmp = join(CWD, fn);
                     writeContents(tmp, "<<<<<<< HEAD\n" + curContent + "=======\n" + otherContent + ">>>>>>>\n");
-                    Blob newBlob = new Blob(tmp, fn); // content modification
-                    newBlob.writeContentToFile(join(CWD, fn));
-                    add(fn);
+                    stage(fn, curHead, Add, Rm);
                 }
             } else if (!inSplit && !otherModified && curModified) {
                 // e. not in SPLIT && not otherHead && mod in curHead -> keep to curHead
@@ -617,26 +785,111 @@ public class Repository {
                 // f. not in SPLIT && not curHead && mod in otherHead -> update to otherHead
                 Blob newBlob = otherHead.get(fn);
                 newBlob.writeContentToFile(join(CWD, fn));
-                add(fn);
+                stage(fn, curHead, Add, Rm);
             }
         }
         // Make a merge commit
         String msg = String.format("Merged %s into %s.", otherBranchName, readContentsAsString(curBranchName));
         // If there's anything in the staging areas
-        Add = getStage(ADD_FILE); // retrieve again
-        Rm = getStage(RM_FILE);
+        Journal journal = new Journal();
         if (Add.size() != 0 || Rm.size() != 0) {
-            Commit mergeCommit = commit(msg);
-            mergeCommit.addParent(otherHead);
+            commit(msg, otherHead, Add, Rm, journal);
         }
+        Add.flush(journal);
+        Rm.flush(journal);
+        journal.commit();
         if (conflicted) {
-            System.out.println("Encountered a merge conflict.");
+            message("Encountered a merge conflict.");
         }
     }
 
 
 
 
+    /** Consolidates all loose commits and blobs into a single pack. */
+    public static void gc() {
+        if (!GITLET_DIR.exists()) {
+            throw error("Not in an initialized Gitlet directory.");
+        }
+        PackFile.gc();
+        CommitGraph.write();
+        MessageIndex.write();
+        Reflog.prune();
+        deleteTempFiles(GITLET_DIR); // gc holds the lock exclusively, so no other command is writing
+    }
+
+    /** Prints the value of a config KEY, or sets it to VALUE if VALUE is not null. */
+    public static void config(String key, String value) {
+        if (!GITLET_DIR.exists()) {
+            throw error("Not in an initialized Gitlet directory.");
+        }
+        if (value == null) {
+            String cur = getConfig(key, null);
+            if (cur != null) {
+                message(cur);
+            }
+            return;
+        }
+        if (key.equals(COMPRESSION_KEY)) {
+            checkCompressionLevel(value);
+        }
+        getConfigs().setProperty(key, value);
+        StringBuilder sb = new StringBuilder();
+        for (String k : new TreeSet<>(config.stringPropertyNames())) {
+            sb.append(k).append('=').append(config.getProperty(k)).append('\n');
+        }
+        writeContents(CONFIG_FILE, sb.toString());
+    }
+
+    /** Returns the value of the config KEY, or DEFAULTVALUE if it is not set. */
+    static String getConfig(String key, String defaultValue) {
+        return getConfigs().getProperty(key, defaultValue);
+    }
+
+    /** Returns the zlib level used when saving blobs and commits. */
+    static int compressionLevel() {
+        String level = getConfig(COMPRESSION_KEY, null);
+        if (level == null) {
+            return Deflater.DEFAULT_COMPRESSION;
+        }
+        return checkCompressionLevel(level);
+    }
+
+    /** Returns LEVEL as a zlib compression level, or fails if it is not one. */
+    private static int checkCompressionLevel(String level) {
+        try {
+            int n = Integer.parseInt(level.trim());
+            if (n >= -1 && n <= 9) {
+                return n;
+            }
+        } catch (NumberFormatException e) {
+            // fall through
+        }
+        throw error("Compression level must be between -1 and 9.");
+    }
+
+    /** Forgets the settings read so far, so that they are read again on next use.
+     *  Called by the daemon before each command, as the config may have changed. */
+    static synchronized void reloadConfig() {
+        config = null;
+    }
+
+    private static synchronized Properties getConfigs() {
+        if (config == null) {
+            Properties loaded = new Properties();
+            if (CONFIG_FILE.exists()) {
+                try (Reader in = new StringReader(readContentsAsString(CONFIG_FILE))) {
+                    loaded.load(in);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            config = loaded;
+        }
+        return config;
+    }
+
+
     /* HEAD and Branch management */
 
     /** Gets the Commit that a given pointer P is pointing to.
@@ -646,12 +899,19 @@ public class Repository {
         return Commit.getCommitFromId(id);
     }
 
-    /** Updates a pointer P to point to a specific Commit
-     *  Usage: updatePointerTo(HEAD, commit) HEAD -> commit
-     *         updatePointerTo(Master, commit) Master -> commit*/
-    private static void updatePointerTo(File p, Commit commit) {
-        // update by internally overwriting the hash (i.e. filename) of the Commit
-        writeContents(p, commit.getId());
+    /** Updates a pointer P to point to a specific Commit, logging the move (by ACTION) in its reflog
+     *  Usage: updatePointerTo(HEAD, commit, Reflog.RESET) HEAD -> commit
+     *         updatePointerTo(Master, commit, Reflog.RESET) Master -> commit*/
+    private static void updatePointerTo(File p, Commit commit, byte action) {
+        Reflog.append(p, commit.getId(), action);
+        // update by internally overwriting the hash (i.e. filename) of the Commit, atomically
+        writeAtomic(p, commit.getId());
+    }
+
+    /** Records in JOURNAL that pointer P is to point to COMMIT, like updatePointerTo(p, commit, action). */
+    private static void updatePointerTo(File p, Commit commit, byte action, Journal journal) {
+        Reflog.append(p, commit.getId(), action);
+        journal.write(p, commit.getId());
     }
 
 
@@ -661,82 +921,80 @@ public class Repository {
     private static void printCommitInfo(Commit commit, SimpleDateFormat format) {
         message("===");
         message("commit %s", commit.getId());
-        List<Commit> parents = commit.getParent();
-        if (parents != null && parents.size() == 2) {
-            System.out.printf(
-                    "Merge: %s %s\n",
-                    parents.get(0).getId().substring(0, 7),
-                    parents.get(1).getId().substring(0, 7));
+        List<String> parents = commit.getParentIds(); // only the ids are shown, so the parents are not read
+        if (parents.size() == 2) {
+            message("Merge: %s %s", parents.get(0).substring(0, 7), parents.get(1).substring(0, 7));
         }
-        message("Date: " + format.format(commit.getTimestamp()));
-        message(commit.getMessage() + "\n");
+        message("Date: %s", format.format(commit.getTimestamp()));
+        message("%s\n", commit.getMessage());
     }
 
     /** Check if there are untracked files in the current branch */
     private static boolean hasUntrackedFile(Commit curHead, Commit checkoutHead) {
-        // Check if this file exists in CWD but not in the Commit of current branch head
-
-        // for all files in the current dir,
-        for (String plainName : Objects.requireNonNull(plainFilenamesIn(CWD))) {
+        // Check if a file of the checked-out Commit exists in CWD but not in the Commit of current branch head
+        // (such files differ between the two trees, so identical directories need not be looked at)
+        for (String plainName : curHead.changedFiles(checkoutHead)) {
             // if the file does not exist in current commit -> has untracked file
-            if (!curHead.containsFile(plainName) && checkoutHead.containsFile(plainName)) {
+            if (!curHead.containsFile(plainName) && checkoutHead.containsFile(plainName)
+                    && join(CWD, plainName).isFile()) {
                 return true;
             }
         }
         return false;
     }
 
-    private static StagingArea getStage(File addFile) {
-        return readObject(addFile, StagingArea.class);
-    }
-
-    /** Checks if the file in SUCCESSOR has been modified based on ANCESTOR.*/
-    private static boolean modified(String plainName, Map<String, String> ancestor,
-                                    Map<String, String> successor) {
-        // equals == true -> not modified
-        boolean res = !ancestor.getOrDefault(plainName, "").equals(successor.getOrDefault(plainName, ""));
-        return res;
-    }
-
-    /** Given a starting vertex, level-traverses the Commit tree
-     *  and returns a map of each visited CommitId to its depth */
-    private static Map<String, Integer> bfs(Commit v) {
-        Map<String, Integer> idToDepth = new TreeMap<>();    // map for curBranch
-
-        Queue<Commit> q = new LinkedList<>();
-        int depth = 0;
-        q.offer(v);
-        while (!q.isEmpty()) {
-            Commit n = q.poll();
-            idToDepth.put(n.getId(), depth);
-            List<Commit> parents = n.getParent();
-            if (parents == null) {
-                break;
-            }
-            for (Commit parent : n.getParent()) {
-                if (parent != null) {
-                    q.offer(parent);
+    /** Updates the working files from the Commit HEAD to the Commit TARGET.
+     *  Files that differ between the two (found by comparing their trees, skipping identical
+     *  directories) are written or deleted. The other files of TARGET are only rewritten if
+     *  the index shows the working file no longer holds them.
+     *  The index is updated with every file written. */
+    private static void checkoutFiles(Commit head, Commit target) {
+        Index index = Index.load();
+        Set<String> changed = head.changedFiles(target);
+        for (String plainName : changed) {
+            String targetId = target.getBlobId(plainName);
+            File f = join(CWD, plainName);
+            if (targetId == null) {
+                // the file is not tracked in the target, but only in head -> delete the file
+                f.delete();
+                index.remove(plainName);
+                // remove directories left empty, up to the working directory
+                File dir = f.getParentFile();
+                while (!dir.equals(CWD) && dir.delete()) {
+                    dir = dir.getParentFile();
                 }
+            } else {
+                target.get(plainName).writeContentToFile(f);
+                index.record(plainName, targetId);
+            }
+        }
+        for (String plainName : target.nameSet()) {
+            // the file is the same in both -> restore it only if it was changed in the working tree
+            String targetId = target.getBlobId(plainName);
+            if (!changed.contains(plainName) && !index.holds(plainName, targetId)) {
+                target.get(plainName).writeContentToFile(join(CWD, plainName));
+                index.record(plainName, targetId);
             }
-            depth++; // post level
         }
-        return idToDepth;
+        index.save();
+    }
+
+    private static StagingArea getStage(File addFile) {
+        return readObject(addFile, StagingArea.class);
     }
 
     /** Check if a split point is the current branch head || is the checked-out branch head */
     private static void checkSplit(Commit split, Commit curBranch, String givenBranchName) {
         Commit givenBranch = getPointer(join(BRANCH_DIR, givenBranchName));
         if (split.compareTo(givenBranch)) {
-            message("Given branch is an ancestor of the current branch.");
-            System.exit(0);
+            throw error("Given branch is an ancestor of the current branch.");
         } else if (split.compareTo(curBranch)) {
             try {
                 checkoutBranch(givenBranchName);
             } catch (IOException e) {
                 throw new RuntimeException(e);
             }
-            message("Current branch fast-forwarded.");
-            System.exit(0);
+            throw error("Current branch fast-forwarded.");
         }
     }
 }
@@ -0,0 +1,282 @@
+package gitlet;
+
+import java.io.File;
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import static gitlet.Utils.*;
+
+/** Represents the files of one directory in a commit.
+ *  A tree maps the names of the files directly in its directory to blob ids,
+ *  and the names of its subdirectories to the ids of their trees.
+ *  Trees are content-addressed: the id is the sha-1 of the entries, so a directory
+ *  that did not change between two commits is the same tree object in both, and
+ *  comparing two directories takes one comparison of ids.
+ *  Paths of files in subdirectories are '/'-separated, e.g. "src/Main.java".
+ *
+ *  @author flora
+ */
+public class Tree implements Serializable {
+
+    /** Pinned to the value computed for the first version of the class,
+     *  so that adding methods does not make stored trees unreadable. */
+    private static final long serialVersionUID = 7428270600437509761L;
+
+    /** The tree directory, a subdirectory of .gitlet. */
+    public static final File TREE_FOLDER = join(Repository.GITLET_DIR, "trees");
+
+    /** Config key of the tree cache capacity, counted in trees. */
+    public static final String CACHE_KEY = "core.treeCache";
+    /** Default tree cache capacity. */
+    private static final int DEFAULT_CACHE_CAPACITY = 10000;
+    /** Maximum number of trees in the cache, read from the config on first use. */
+    private static volatile int cacheCapacity = -1;
+
+    /** Trees already read or saved, by id, in access order, so the eldest entry is the least
+     *  recently used. Trees never change once written. */
+    private static final Map<String, Tree> cache = Collections.synchronizedMap(
+            new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Tree> eldest) {
+                    return size() > cacheCapacity();
+                }
+            });
+
+    /** Mapping of the names of files in this directory to blob ids. */
+    private final TreeMap<String, String> blobs;
+    /** Mapping of the names of subdirectories to tree ids. */
+    private final TreeMap<String, String> trees;
+    private final String id;
+
+    private Tree(TreeMap<String, String> blobs, TreeMap<String, String> trees) {
+        this.blobs = blobs;
+        this.trees = trees;
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, String> e : blobs.entrySet()) {
+            sb.append("blob ").append(e.getValue()).append(' ').append(e.getKey()).append('\n');
+        }
+        for (Map.Entry<String, String> e : trees.entrySet()) {
+            sb.append("tree ").append(e.getValue()).append(' ').append(e.getKey()).append('\n');
+        }
+        this.id = sha1(sb.toString());
+    }
+
+    /* Building and saving */
+
+    /** Builds the trees of FILES, a map of paths to blob ids, saves those not stored yet,
+     *  and returns the id of the root tree. */
+    public static String write(SortedMap<String, String> files) {
+        TreeMap<String, String> blobs = new TreeMap<>();
+        TreeMap<String, TreeMap<String, String>> dirs = new TreeMap<>();
+        for (Map.Entry<String, String> e : files.entrySet()) {
+            String path = e.getKey();
+            int slash = path.indexOf('/');
+            if (slash < 0) {
+                blobs.put(path, e.getValue());
+            } else {
+                dirs.computeIfAbsent(path.substring(0, slash), k -> new TreeMap<>())
+                        .put(path.substring(slash + 1), e.getValue());
+            }
+        }
+        TreeMap<String, String> trees = new TreeMap<>();
+        for (Map.Entry<String, TreeMap<String, String>> e : dirs.entrySet()) {
+            trees.put(e.getKey(), write(e.getValue()));
+        }
+        Tree tree = new Tree(blobs, trees);
+        tree.save();
+        return tree.id;
+    }
+
+    /** Returns the id of the root tree obtained by applying CHANGES, a map of paths to
+     *  new blob ids (null to remove the file), to the tree ROOTID (null for an empty tree).
+     *  Only the trees on the paths of the changes are copied and saved; every other
+     *  subtree is shared with ROOTID. Directories left empty are dropped. */
+    public static String update(String rootId, SortedMap<String, String> changes) {
+        return update(rootId, changes, true);
+    }
+
+    /** Applies CHANGES to the tree ID like update(rootId, changes); returns null if the tree
+     *  ends up empty, unless it is the ROOT. */
+    private static String update(String id, SortedMap<String, String> changes, boolean root) {
+        Tree old = fromId(id);
+        TreeMap<String, String> blobs = old == null ? new TreeMap<>() : new TreeMap<>(old.blobs);
+        TreeMap<String, String> trees = old == null ? new TreeMap<>() : new TreeMap<>(old.trees);
+        TreeMap<String, TreeMap<String, String>> dirs = new TreeMap<>();
+        for (Map.Entry<String, String> e : changes.entrySet()) {
+            String path = e.getKey();
+            int slash = path.indexOf('/');
+            if (slash >= 0) {
+                dirs.computeIfAbsent(path.substring(0, slash), k -> new TreeMap<>())
+                        .put(path.substring(slash + 1), e.getValue());
+            } else if (e.getValue() == null) {
+                blobs.remove(path);
+            } else {
+                blobs.put(path, e.getValue());
+            }
+        }
+        for (Map.Entry<String, TreeMap<String, String>> e : dirs.entrySet()) {
+            String sub = update(trees.get(e.getKey()), e.getValue(), false);
+            if (sub == null) {
+                trees.remove(e.getKey());
+            } else {
+                trees.put(e.getKey(), sub);
+            }
+        }
+        if (!root && blobs.isEmpty() && trees.isEmpty()) {
+            return null; // an emptied subdirectory
+        }
+        Tree tree = new Tree(blobs, trees);
+        tree.save();
+        return tree.id;
+    }
+
+    /** Saves this tree to TREE_FOLDER, unless it is already stored.
+     *  Being cached is not enough: the cache outlives the repository it was filled from. */
+    private void save() {
+        cache.put(id, this);
+        if (findObject(TREE_FOLDER, id) != null || PackFile.contains(PackFile.TREE, id)) {
+            return;
+        }
+        if (!TREE_FOLDER.exists()) {
+            TREE_FOLDER.mkdir();
+        }
+        // Serialized and published like commits: compressed unless the repo disables it
+        int level = Repository.compressionLevel();
+        if (level == 0) {
+            writeAtomic(objectFile(TREE_FOLDER, id), serialize(this));
+        } else {
+            writeAtomic(objectFile(TREE_FOLDER, id), COMPRESSED_MAGIC, compress(serialize(this), level));
+        }
+    }
+
+    /** Returns the tree ID, or null if ID is null (meaning an empty directory).
+     *  Loose trees take precedence over packed ones. */
+    public static Tree fromId(String id) {
+        if (id == null) {
+            return null;
+        }
+        Tree tree = cache.get(id);
+        if (tree != null) {
+            return tree;
+        }
+        File filePath = findObject(TREE_FOLDER, id);
+        if (filePath != null) {
+            tree = readCompressedObject(filePath, Tree.class);
+        } else {
+            byte[] packed = PackFile.readTree(id);
+            if (packed == null) {
+                throw error("Missing tree %s.", id);
+            }
+            tree = deserialize(decompress(packed), Tree.class);
+        }
+        cache.put(id, tree);
+        return tree;
+    }
+
+    /* Tree cache */
+
+    /** Returns the capacity of the cache, reading it from the config on first use. */
+    private static int cacheCapacity() {
+        if (cacheCapacity < 0) {
+            int capacity;
+            try {
+                capacity = Integer.parseInt(
+                        Repository.getConfig(CACHE_KEY, String.valueOf(DEFAULT_CACHE_CAPACITY)).trim());
+            } catch (NumberFormatException e) {
+                capacity = -1;
+            }
+            if (capacity < 0) {
+                throw error("%s must be a number of trees.", CACHE_KEY);
+            }
+            cacheCapacity = capacity;
+        }
+        return cacheCapacity;
+    }
+
+    /** Makes the cache read its capacity from the config again on next use.
+     *  The cached trees themselves stay valid, since trees never change. */
+    static void reloadConfig() {
+        cacheCapacity = -1;
+    }
+
+    /* Reading */
+
+    /** Returns the id of the blob at PATH below the tree ROOTID, or null if there is none.
+     *  Only the trees on the way to PATH are read. */
+    public static String blobIdAt(String rootId, String path) {
+        Tree tree = fromId(rootId);
+        int start = 0;
+        for (int slash = path.indexOf('/'); tree != null && slash >= 0; slash = path.indexOf('/', start)) {
+            tree = fromId(tree.trees.get(path.substring(start, slash)));
+            start = slash + 1;
+        }
+        return tree == null ? null : tree.blobs.get(path.substring(start));
+    }
+
+    /** Adds every file below the tree ID to FILES, under its path prefixed with PREFIX. */
+    public static void flatten(String id, String prefix, Map<String, String> files) {
+        Tree tree = fromId(id);
+        if (tree == null) {
+            return;
+        }
+        for (Map.Entry<String, String> e : tree.blobs.entrySet()) {
+            files.put(prefix + e.getKey(), e.getValue());
+        }
+        for (Map.Entry<String, String> e : tree.trees.entrySet()) {
+            flatten(e.getValue(), prefix + e.getKey() + "/", files);
+        }
+    }
+
+    /** Adds to CHANGED the paths (prefixed with PREFIX) of the files whose blob differs
+     *  between the trees A and B, including files only in one of them.
+     *  Subtrees with the same id in both are skipped without being read. */
+    public static void diff(String a, String b, String prefix, Set<String> changed) {
+        if (a == null ? b == null : a.equals(b)) {
+            return;
+        }
+        Tree treeA = fromId(a);
+        Tree treeB = fromId(b);
+        TreeMap<String, String> blobsA = treeA == null ? new TreeMap<>() : treeA.blobs;
+        TreeMap<String, String> blobsB = treeB == null ? new TreeMap<>() : treeB.blobs;
+        for (Map.Entry<String, String> e : blobsA.entrySet()) {
+            if (!e.getValue().equals(blobsB.get(e.getKey()))) {
+                changed.add(prefix + e.getKey());
+            }
+        }
+        for (String name : blobsB.keySet()) {
+            if (!blobsA.containsKey(name)) {
+                changed.add(prefix + name);
+            }
+        }
+        TreeMap<String, String> treesA = treeA == null ? new TreeMap<>() : treeA.trees;
+        TreeMap<String, String> treesB = treeB == null ? new TreeMap<>() : treeB.trees;
+        for (Map.Entry<String, String> e : treesA.entrySet()) {
+            diff(e.getValue(), treesB.get(e.getKey()), prefix + e.getKey() + "/", changed);
+        }
+        for (Map.Entry<String, String> e : treesB.entrySet()) {
+            if (!treesA.containsKey(e.getKey())) {
+                diff(null, e.getValue(), prefix + e.getKey() + "/", changed);
+            }
+        }
+    }
+
+    /** Returns the blob ids of the files directly in this directory, by name. */
+    public Map<String, String> getBlobs() {
+        return Collections.unmodifiableMap(blobs);
+    }
+
+    /** Returns the tree ids of the subdirectories of this directory, by name. */
+    public Map<String, String> getTrees() {
+        return Collections.unmodifiableMap(trees);
+    }
+
+    /** Returns the sha-1 hash of the Tree object. */
+    public String getId() {
+        return this.id;
+    }
+}
@@ -0,0 +1,171 @@
+package gitlet;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import static gitlet.Utils.*;
+
+/** Tests of Tree.update, which copies only the trees on the paths of the changes.
+ *
+ *  @author flora
+ */
+public class TreeTest {
+    public static final File CWD = Repository.CWD;
+
+    /** Starts every test from a fresh repository. */
+    @Before
+    public void setUp() throws IOException {
+        if (Repository.GITLET_DIR.exists()) {
+            cleanRepo(CWD);
+        }
+        Repository.init();
+    }
+
+    /** Returns a (fake) blob id for the content NAME. */
+    private static String blob(String name) {
+        return sha1(name);
+    }
+
+    /** Returns the ids of the trees stored so far. */
+    private static Set<String> storedTrees() {
+        List<String> ids = objectIdsIn(Tree.TREE_FOLDER);
+        return ids == null ? new HashSet<>() : new HashSet<>(ids);
+    }
+
+    /** Returns the files of the tree ID. */
+    private static Map<String, String> files(String id) {
+        Map<String, String> files = new TreeMap<>();
+        Tree.flatten(id, "", files);
+        return files;
+    }
+
+    /** Returns FILES with CHANGES applied (a null blob id removes the file). */
+    private static SortedMap<String, String> applied(Map<String, String> files, Map<String, String> changes) {
+        SortedMap<String, String> res = new TreeMap<>(files);
+        for (Map.Entry<String, String> e : changes.entrySet()) {
+            if (e.getValue() == null) {
+                res.remove(e.getKey());
+            } else {
+                res.put(e.getKey(), e.getValue());
+            }
+        }
+        return res;
+    }
+
+    /** Test that an update saves new trees only for the directories on the changed paths,
+     *  drops emptied directories, and gives the same tree as writing all the files. */
+    @Test
+    public void testPathCopy() {
+        SortedMap<String, String> files = new TreeMap<>();
+        for (String path : new String[]{"a.txt", "b.txt", "src/Main.java", "src/util/A.java",
+            "src/util/B.java", "src/gui/W.java", "doc/x.md", "lib/deep/er/z.bin"}) {
+            files.put(path, blob(path));
+        }
+        String root = Tree.write(files);
+        Set<String> before = storedTrees();
+
+        SortedMap<String, String> changes = new TreeMap<>();
+        changes.put("src/util/A.java", blob("new A"));
+        changes.put("doc/x.md", null);
+        changes.put("new/dir/f.txt", blob("f"));
+        changes.put("b.txt", null);
+        String updated = Tree.update(root, changes);
+
+        // Only root, src, src/util, new and new/dir were copied; src/gui and lib/... are shared
+        Set<String> created = storedTrees();
+        created.removeAll(before);
+        Assert.assertEquals(5, created.size());
+        Assert.assertTrue(created.contains(updated));
+
+        Map<String, String> expected = applied(files, changes);
+        Assert.assertEquals(expected, files(updated));
+        Assert.assertEquals(Tree.write(new TreeMap<>(expected)), updated);
+        Assert.assertNull(Tree.blobIdAt(updated, "doc/x.md"));
+        Assert.assertEquals(blob("new A"), Tree.blobIdAt(updated, "src/util/A.java"));
+        Assert.assertEquals(blob("src/gui/W.java"), Tree.blobIdAt(updated, "src/gui/W.java"));
+
+        Set<String> changed = new TreeSet<>();
+        Tree.diff(root, updated, "", changed);
+        Assert.assertEquals(changes.keySet(), changed);
+        // The original tree is untouched
+        Assert.assertEquals(files, files(root));
+    }
+
+    /** Test updates of an empty tree, and updates that remove every file. */
+    @Test
+    public void testEmptyTrees() {
+        SortedMap<String, String> files = new TreeMap<>();
+        files.put("a/b/c.txt", blob("c"));
+        files.put("d.txt", blob("d"));
+        String fromEmpty = Tree.update(null, files);
+        Assert.assertEquals(Tree.write(files), fromEmpty);
+
+        SortedMap<String, String> removals = new TreeMap<>();
+        removals.put("a/b/c.txt", null);
+        removals.put("d.txt", null);
+        String emptied = Tree.update(fromEmpty, removals);
+        Assert.assertNotNull(emptied); // the root is kept, even when empty
+        Assert.assertTrue(files(emptied).isEmpty());
+        Assert.assertEquals(Tree.write(new TreeMap<>()), emptied);
+    }
+
+    /** Test random batches of changes against writing the resulting files from scratch. */
+    @Test
+    public void testRandomUpdates() {
+        Random random = new Random(16);
+        String[] dirs = {"", "a/", "a/b/", "a/b/c/", "d/", "d/e/"};
+        SortedMap<String, String> files = new TreeMap<>();
+        String root = Tree.write(files);
+        for (int round = 0; round < 200; round++) {
+            SortedMap<String, String> changes = new TreeMap<>();
+            List<String> present = new ArrayList<>(files.keySet());
+            for (int i = random.nextInt(6); i >= 0; i--) {
+                if (!present.isEmpty() && random.nextInt(3) == 0) {
+                    changes.put(present.get(random.nextInt(present.size())), null);
+                } else {
+                    String path = dirs[random.nextInt(dirs.length)] + "f" + random.nextInt(5);
+                    changes.put(path, blob(path + round));
+                }
+            }
+            root = Tree.update(root, changes);
+            files = applied(files, changes);
+            Assert.assertEquals(files, files(root));
+            Assert.assertEquals(Tree.write(files), root);
+        }
+    }
+
+    /** Test that a tree written again after the repository is re-initialized is stored again,
+     *  though it is still in the tree cache from before. */
+    @Test
+    public void testReinit() throws IOException {
+        SortedMap<String, String> files = new TreeMap<>();
+        files.put("a.txt", blob("a"));
+        files.put("src/Main.java", blob("Main"));
+        String root = Tree.write(files);
+
+        cleanRepo(CWD);
+        Repository.init();
+        Assert.assertEquals(root, Tree.write(files));
+        Assert.assertNotNull(findObject(Tree.TREE_FOLDER, root));
+        Assert.assertNotNull(findObject(Tree.TREE_FOLDER, Tree.fromId(root).getTrees().get("src")));
+        Assert.assertEquals(files, files(root));
+
+        cleanRepo(CWD);
+        Repository.init();
+        Assert.assertEquals(root, Tree.update(null, files));
+        Assert.assertNotNull(findObject(Tree.TREE_FOLDER, root));
+    }
+}
@@ -1,22 +1,35 @@
 package gitlet;
 
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.PrintStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Formatter;
 import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 
 /** Assorted utilities.
@@ -57,6 +70,29 @@ class Utils {
         }
     }
 
+    /** Returns the hexadecimal form of the bytes RAW, e.g. of a finished digest. */
+    static String toHex(byte[] raw) {
+        StringBuilder sb = new StringBuilder(raw.length * 2);
+        for (byte b : raw) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    /** Returns the 20 raw bytes of the full hexadecimal id HEX.
+     *  Throws a NumberFormatException if HEX is not one. */
+    static byte[] toBytes(String hex) {
+        if (hex.length() != UID_LENGTH) {
+            throw new NumberFormatException("not a full id: " + hex);
+        }
+        byte[] res = new byte[UID_LENGTH / 2];
+        for (int i = 0; i < res.length; i++) {
+            res[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return res;
+    }
+
     /** Returns the SHA-1 hash of the concatenation of the strings in
      *  VALS. */
     static String sha1(List<Object> vals) {
@@ -191,6 +227,156 @@ class Utils {
         writeContents(file, serialize(obj));
     }
 
+    /* ATOMIC FILES */
+
+    /** Suffix of the temporary files made by writeAtomic. */
+    static final String TMP_SUFFIX = ".tmp";
+
+    /** Write the result of concatenating the bytes in CONTENTS to FILE atomically,
+     *  like writeContents: the bytes go to a new temporary file in the same directory
+     *  (.<name of FILE>.<random>.tmp, so concurrent writers never share one), which is
+     *  forced to disk and then renamed over FILE. Readers, and a crash at any point,
+     *  therefore see either the old or the new contents of FILE, never a partial file.
+     *  A crash may leave the temporary file behind; see isTempFile and deleteTempFiles. */
+    static void writeAtomic(File file, Object... contents) {
+        File tmp;
+        try {
+            tmp = File.createTempFile("." + file.getName() + ".", TMP_SUFFIX, file.getParentFile());
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        try {
+            try (FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.WRITE)) {
+                for (Object obj : contents) {
+                    byte[] bytes = obj instanceof byte[]
+                            ? (byte[]) obj : ((String) obj).getBytes(StandardCharsets.UTF_8);
+                    ByteBuffer buf = ByteBuffer.wrap(bytes);
+                    while (buf.hasRemaining()) {
+                        out.write(buf);
+                    }
+                }
+                out.force(true); // fsync the data before it becomes visible under FILE
+            }
+            Files.move(tmp.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            syncDirectory(file.getParentFile());
+        } catch (IOException | ClassCastException excp) {
+            tmp.delete();
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Returns true if NAME is that of a temporary file made by writeAtomic. */
+    static boolean isTempFile(String name) {
+        return name.startsWith(".") && name.endsWith(TMP_SUFFIX);
+    }
+
+    /** Deletes the temporary files that writeAtomic calls interrupted by a crash left in DIR
+     *  and its subdirectories. Only safe while no other command can be writing to DIR. */
+    static void deleteTempFiles(File dir) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File f : files) {
+            if (f.isDirectory()) {
+                deleteTempFiles(f);
+            } else if (isTempFile(f.getName())) {
+                f.delete();
+            }
+        }
+    }
+
+    /** Forces the entries of directory DIR (e.g. a rename into it) to disk,
+     *  where the platform allows opening a directory. */
+    private static void syncDirectory(File dir) {
+        try (FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // not supported here (e.g. on Windows); the rename itself is still atomic
+        }
+    }
+
+    /* COMPRESSED OBJECT FILES */
+
+    /** Leading bytes of a file written by writeCompressed. */
+    static final byte[] COMPRESSED_MAGIC = {'g', 'l', 'z', '1'};
+
+    /** Write CONTENTS to FILE as COMPRESSED_MAGIC followed by a zlib stream
+     *  deflated at LEVEL (0-9, or -1 for the zlib default). */
+    static void writeCompressed(File file, byte[] contents, int level) {
+        writeContents(file, COMPRESSED_MAGIC, compress(contents, level));
+    }
+
+    /** Return the contents of FILE, inflated if it was written by writeCompressed
+     *  and as-is otherwise. */
+    static byte[] readCompressed(File file) {
+        return decompress(readContents(file));
+    }
+
+    /** Return an object of type T read from FILE, which may or may not be compressed. */
+    static <T extends Serializable> T readCompressedObject(File file,
+                                                           Class<T> expectedClass) {
+        return deserialize(readCompressed(file), expectedClass);
+    }
+
+    /** Returns true if BYTES begin with PREFIX. */
+    static boolean startsWith(byte[] bytes, byte[] prefix) {
+        if (bytes.length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (bytes[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Returns the zlib stream of CONTENTS deflated at LEVEL. */
+    static byte[] compress(byte[] contents, int level) {
+        Deflater deflater = new Deflater(level);
+        try {
+            deflater.setInput(contents);
+            deflater.finish();
+            ByteArrayOutputStream stream =
+                new ByteArrayOutputStream(Math.max(64, contents.length / 2));
+            byte[] buf = new byte[8192];
+            while (!deflater.finished()) {
+                stream.write(buf, 0, deflater.deflate(buf));
+            }
+            return stream.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /** Returns BYTES inflated if they start with COMPRESSED_MAGIC, and BYTES otherwise. */
+    static byte[] decompress(byte[] bytes) {
+        if (!startsWith(bytes, COMPRESSED_MAGIC)) {
+            return bytes;
+        }
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(bytes, COMPRESSED_MAGIC.length,
+                              bytes.length - COMPRESSED_MAGIC.length);
+            ByteArrayOutputStream stream = new ByteArrayOutputStream(bytes.length * 3);
+            byte[] buf = new byte[8192];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buf);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IllegalArgumentException("truncated compressed object");
+                }
+                stream.write(buf, 0, n);
+            }
+            return stream.toByteArray();
+        } catch (DataFormatException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+
     /* DIRECTORIES */
 
     /** Filter out all but plain files. */
@@ -222,6 +408,73 @@ class Utils {
         return plainFilenamesIn(new File(dir));
     }
 
+    /* OBJECT DIRECTORIES */
+
+    /** Number of leading id characters used as the fan-out subdirectory name. */
+    static final int FAN_OUT = 2;
+
+    /** Returns the file of the object ID in the object directory DIR, laid out
+     *  as DIR/ab/cdef... so that no single directory grows too large.
+     *  Creates the fan-out subdirectory if needed; the file itself is not created. */
+    static File objectFile(File dir, String id) {
+        File sub = join(dir, id.substring(0, FAN_OUT));
+        if (!sub.exists()) {
+            sub.mkdirs();
+        }
+        return join(sub, id.substring(FAN_OUT));
+    }
+
+    /** Returns the existing file of the object ID in the object directory DIR,
+     *  or null if there is none. An object still stored in the old flat layout
+     *  (DIR/abcdef...) is moved into its fan-out subdirectory on the way. */
+    static File findObject(File dir, String id) {
+        if (id == null || id.length() <= FAN_OUT) {
+            return null;
+        }
+        File file = join(dir, id.substring(0, FAN_OUT), id.substring(FAN_OUT));
+        if (file.isFile()) {
+            return file;
+        }
+        File flat = join(dir, id);
+        if (flat.isFile()) {
+            File moved = objectFile(dir, id);
+            if (flat.renameTo(moved)) {
+                return moved;
+            }
+            return flat;
+        }
+        return null;
+    }
+
+    /** Returns the ids of all objects in the object directory DIR, in
+     *  lexicographic order. Objects found in the old flat layout are migrated
+     *  into fan-out subdirectories. Returns null if DIR does not denote a directory. */
+    static List<String> objectIdsIn(File dir) {
+        String[] entries = dir.list();
+        if (entries == null) {
+            return null;
+        }
+        List<String> ids = new ArrayList<>();
+        for (String entry : entries) {
+            File f = join(dir, entry);
+            if (f.isDirectory() && entry.length() == FAN_OUT) {
+                String[] names = f.list(PLAIN_FILES);
+                if (names != null) {
+                    for (String name : names) {
+                        if (name.length() == UID_LENGTH - FAN_OUT) { // not a temporary file
+                            ids.add(entry + name);
+                        }
+                    }
+                }
+            } else if (f.isFile() && entry.length() == UID_LENGTH) {
+                findObject(dir, entry); // migrate
+                ids.add(entry);
+            }
+        }
+        Collections.sort(ids);
+        return ids;
+    }
+
     /* OTHER FILE UTILITIES */
 
     /** Return the concatentation of FIRST and OTHERS into a File designator,
@@ -254,6 +507,22 @@ class Utils {
         }
     }
 
+    /** Returns an object of type T deserialized from BYTES, casting it to EXPECTEDCLASS.
+     *  Throws IllegalArgumentException in case of problems. */
+    static <T extends Serializable> T deserialize(byte[] bytes,
+                                                  Class<T> expectedClass) {
+        try {
+            ObjectInputStream in =
+                new ObjectInputStream(new ByteArrayInputStream(bytes));
+            T result = expectedClass.cast(in.readObject());
+            in.close();
+            return result;
+        } catch (IOException | ClassCastException
+                 | ClassNotFoundException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
 
 
     /* MESSAGES AND ERROR REPORTING */
@@ -267,7 +536,33 @@ class Utils {
     /** Print a message composed from MSG and ARGS as for the String.format
      *  method, followed by a newline. */
     static void message(String msg, Object... args) {
-        System.out.printf(msg, args);
-        System.out.println();
+        out.printf(msg, args);
+        out.println();
+    }
+
+    /* OUTPUT */
+
+    /** Where message() prints: standard output, through a buffer that is only written out
+     *  when full or by flushOutput(), rather than once per line. */
+    private static PrintStream out = new PrintStream(new BufferedOutputStream(
+            new FileOutputStream(FileDescriptor.out), 1 << 16), false, StandardCharsets.UTF_8);
+
+    /** Makes message() print to STREAM (e.g. to a daemon client) and returns the stream
+     *  it printed to before. */
+    static synchronized PrintStream setOutput(PrintStream stream) {
+        PrintStream old = out;
+        out = stream;
+        return old;
+    }
+
+    /** Writes out what message() has printed so far. Called when a command is done. */
+    static void flushOutput() {
+        out.flush();
+    }
+
+    /** Flushes the output and returns true if it can no longer be written to, e.g. because
+     *  the reader of `log | head` is gone, so that long listings can stop early. */
+    static boolean outputClosed() {
+        return out.checkError();
     }
 }
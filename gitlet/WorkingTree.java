@@ -0,0 +1,64 @@
+package gitlet;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/** Lists the files of the working tree, walking subdirectories in parallel.
+ *  Each directory is listed by its own fork-join task, so deep or wide trees are
+ *  spread over all cores. The .gitlet directory is never entered, nor are symbolic links
+ *  to directories, which may lead back up the tree and make the walk endless.
+ *
+ *  @author flora
+ */
+public class WorkingTree extends RecursiveTask<List<String>> {
+
+    /** Tasks are never serialized; declared because RecursiveTask is Serializable. */
+    private static final long serialVersionUID = 1L;
+
+    /** The directory listed by this task. */
+    private final File dir;
+    /** The '/'-separated path of DIR relative to the root of the walk, ending in '/' (or empty). */
+    private final String prefix;
+
+    private WorkingTree(File dir, String prefix) {
+        this.dir = dir;
+        this.prefix = prefix;
+    }
+
+    /** Returns the '/'-separated paths, relative to DIR, of all plain files below DIR,
+     *  in lexicographic order, skipping the .gitlet directory and links to directories. */
+    public static List<String> filesIn(File dir) {
+        List<String> files = ForkJoinPool.commonPool().invoke(new WorkingTree(dir, ""));
+        Collections.sort(files);
+        return files;
+    }
+
+    @Override
+    protected List<String> compute() {
+        List<String> files = new ArrayList<>();
+        String[] names = dir.list();
+        if (names == null) {
+            return files;
+        }
+        List<WorkingTree> subdirs = new ArrayList<>();
+        for (String name : names) {
+            File f = new File(dir, name);
+            if (f.isFile()) {
+                files.add(prefix + name);
+            } else if (f.isDirectory() && !f.equals(Repository.GITLET_DIR) && !Files.isSymbolicLink(f.toPath())) {
+                WorkingTree task = new WorkingTree(f, prefix + name + "/");
+                task.fork();
+                subdirs.add(task);
+            }
+        }
+        for (WorkingTree task : subdirs) {
+            files.addAll(task.join());
+        }
+        return files;
+    }
+}